@@ -1,28 +1,25 @@
 package controllers;
 
 import com.google.common.collect.ImmutableMap;
+import models.NewsIndex;
 import models.WebPage;
 import org.apache.commons.io.IOUtils;
 import org.apache.commons.mail.EmailException;
 import org.apache.commons.mail.SimpleEmail;
-import org.apache.lucene.queryparser.classic.ParseException;
-import org.apache.lucene.search.Query;
-import org.apache.lucene.search.ScoreDoc;
-import org.apache.lucene.search.TopDocs;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.w3c.dom.Document;
 import org.w3c.dom.Node;
 import play.Play;
-import play.cache.CacheFor;
-import play.db.jpa.JPA;
 import play.db.jpa.NoTransaction;
+import play.i18n.Lang;
 import play.i18n.Messages;
 import play.libs.Mail;
 import play.libs.MimeTypes;
 import play.libs.XML;
 import play.mvc.*;
 import play.mvc.results.Redirect;
+import play.mvc.results.RenderTemplate;
 import play.rebel.RebelController;
 import play.security.AuthorizationService;
 import play.security.Secured;
@@ -30,29 +27,28 @@ import play.templates.BaseTemplate;
 import play.templates.TagContext;
 import play.vfs.VirtualFile;
 import plugins.SetLangByURL;
+import util.NotFoundPages;
+import util.RenderCache;
+import util.RenderStaticFile;
+import util.Thumbnails;
 import util.WebPageIndexer;
 
-import javax.imageio.ImageIO;
 import javax.inject.Inject;
-import java.awt.*;
-import java.awt.image.BufferedImage;
 import java.io.*;
 import java.net.URL;
 import java.net.URLDecoder;
 import java.text.SimpleDateFormat;
 import java.util.*;
 import java.util.List;
-import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.RejectedExecutionException;
 
-import static java.awt.RenderingHints.*;
-import static java.lang.Math.min;
 import static java.util.Arrays.asList;
-import static java.util.Comparator.comparingInt;
 import static java.util.concurrent.TimeUnit.SECONDS;
 import static models.WebPage.ALLOWED_FILE_TYPES;
 import static models.WebPage.rootForLocale;
 import static org.apache.commons.io.FilenameUtils.getExtension;
 import static org.apache.commons.lang.StringUtils.*;
+import static org.apache.commons.lang.math.NumberUtils.toInt;
 import static plugins.WebContentPlugin.cacheEnabled;
 import static util.UrlEncoder.safeUrlEncode;
 
@@ -74,46 +70,83 @@ public class Web extends RebelController {
     renderArgs.put("includeHiddenPages", authorizationService.check("cms"));
   }
 
-  @SetLangByURL @CacheFor("5mn")
-  public void serveContentCached() throws IOException, ParseException {
+  @SetLangByURL
+  public void serveContentCached() throws IOException {
     serveContentInternal();
   }
 
   @SetLangByURL
-  public void serveContent() throws IOException, ParseException {
+  public void serveContent() throws IOException {
     serveContentInternal();
   }
 
-  private void serveContentInternal() throws IOException, ParseException {
+  private void serveContentInternal() throws IOException {
     VirtualFile dir = serveFileOrGetDirectory();
     if (!request.path.endsWith("/")) redirect(request.path + "/");
     WebPage page = WebPage.forPath(dir);
     String redirectUrl = page.metadata.getProperty("redirect");
     if (isNotEmpty(redirectUrl)) redirect(fixRedirectUrl(redirectUrl));
-    if (cacheEnabled()) response.cacheFor(Long.toString(page.dir.lastModified()), "12h", page.dir.lastModified());
+    if (cacheEnabled()) response.cacheFor(Long.toString(page.modified()), "12h", page.modified());
+    // html is shared between visitors, so it is not cached for sessions with data, e.g. of logged in users,
+    // nor if rendering has put something into the session, like the authenticity token of a form
+    if (cacheEnabled() && isEmpty(request.querystring) && flash.data.isEmpty() && session.isEmpty() && !"cms".equals(profile())) {
+      renderHtml(RenderCache.get(page, Lang.get(), profile(), () -> renderToString(page), session::isEmpty));
+    }
     renderPage(page);
   }
 
-  private VirtualFile serveFileOrGetDirectory() throws IOException, ParseException {
+  private static String renderToString(WebPage page) {
+    try {
+      renderPage(page);
+      throw new IllegalStateException("Page was not rendered: " + page.path);
+    }
+    catch (RenderTemplate result) {
+      return result.getContent();
+    }
+  }
+
+  private VirtualFile serveFileOrGetDirectory() throws IOException {
     VirtualFile file = WebPage.toVirtualFile(URLDecoder.decode(request.path, "UTF-8"));
     if (file.exists() && isAllowed(file)) {
       Http.Response.current().cacheFor("30d");
-      renderBinary(file.getRealFile());
+      throw new RenderStaticFile(file.getRealFile());
     }
     else if (!file.isDirectory()) showNotFoundError();
     return file;
   }
 
-  private void showNotFoundError() throws IOException, ParseException {
+  private void showNotFoundError() throws IOException {
     String contentType = MimeTypes.getContentType(request.path, "text/html");
 
-    if (!indexer.shouldIndex() || !contentType.startsWith("text/html")) {
+    if (!indexer.shouldIndex() || !contentType.startsWith("text/html") || !NotFoundPages.isWorthSearching(request.path)) {
       notFound();
     }
-    else {
+    else if ("cms".equals(profile()) || !session.isEmpty()) {
+      // layouts can include the page editor or other markup of the session, so such pages are not shared
       Http.Response.current().status = Http.StatusCode.NOT_FOUND;
       renderSearch(request.path.replaceFirst(".*/", ""));
     }
+    else {
+      String q = request.path.replaceFirst(".*/", "");
+      String html = NotFoundPages.get(request.url, Lang.get(), profile(), () -> renderSearchToString(q), session::isEmpty);
+      if (html == null) notFound();
+      Http.Response.current().status = Http.StatusCode.NOT_FOUND;
+      renderHtml(html);
+    }
+  }
+
+  private String renderSearchToString(String q) throws IOException {
+    try {
+      renderSearch(q);
+      throw new IllegalStateException("Search was not rendered: " + q);
+    }
+    catch (RenderTemplate result) {
+      return result.getContent();
+    }
+  }
+
+  private static String profile() {
+    return authorizationService.check("cms") ? "cms" : "anonymous";
   }
 
   private String fixRedirectUrl(String url) {
@@ -129,7 +162,7 @@ public class Web extends RebelController {
     return ALLOWED_FILE_TYPES.contains(getExtension(file.getName()));
   }
 
-  public void search(String q) throws ParseException, IOException {
+  public void search(String q) throws IOException {
     if (!indexer.shouldIndex()) {
       error(404, Messages.get("error.notFound"));
       return;
@@ -137,18 +170,13 @@ public class Web extends RebelController {
     renderSearch(q);
   }
   
-  private void renderSearch(String q) throws ParseException, IOException {
-    Query query = indexer.queryParser.parse("title:\"" + q + "\"^3 text:\"" + q + "\" keywords:\"" + q + "\"^2 path:\"" + q + "\"^2");
-    TopDocs topDocs = indexer.searcher.search(query, 50);
-    List<WebPage> results = new ArrayList<>();
-    for (ScoreDoc scoreDoc : topDocs.scoreDocs) {
-      WebPage page = WebPage.forPath(indexer.reader.document(scoreDoc.doc).get("path"));
-      results.add(page);
-    }
-
-    renderArgs.put("numResults", topDocs.totalHits);
+  private void renderSearch(String q) throws IOException {
+    int offset = toInt(params.get("after"));
+    WebPageIndexer.SearchResults results = indexer.search(q, offset, 50);
+    renderArgs.put("numResults", results.totalHits);
     renderArgs.put("q", q);
-    renderArgs.put("results", results);
+    renderArgs.put("results", results.hits);
+    if (offset + results.hits.size() < results.totalHits) renderArgs.put("nextCursor", String.valueOf(offset + results.hits.size()));
     render();
   }
 
@@ -174,42 +202,22 @@ public class Web extends RebelController {
     VirtualFile dir = serveFileOrGetDirectory();
     tag = fixEncodingForIE(tag);
     WebPage.News page = WebPage.forPath(dir);
-    List<WebPage> allNews = page.findNews(tag);
-    if (isNotEmpty(tag) && allNews.isEmpty() && page.level >= 2) redirect(page.parent().path + "?" + request.querystring);
-    List<WebPage> news = page.isStory() ? asList((WebPage)page) : limit(allNews, 30);
-    List<Entry<String, Float>> tagFreq = tagFreq(page);
-    int total = allNews.size();
-    
+    NewsIndex index = page.newsIndex();
+    String before = params.get("before");
+    int total = index.count(page.path, tag, before);
+    if (isNotEmpty(tag) && total == 0 && isEmpty(before) && page.level >= 2) redirect(page.parent().path + "?" + request.querystring);
+    List<WebPage> news = page.isStory() ? asList((WebPage)page) : index.latest(page.path, tag, before, 30);
+    List<Entry<String, Float>> tagFreq = page.isYear() || page.isMonth() ? index.tagCloud(page.path) : indexer.tagCloud(page.topParentName());
+
     renderArgs.put("page", page);
     renderArgs.put("news", news);
     renderArgs.put("tag", tag);
     renderArgs.put("tagFreq", tagFreq);
     renderArgs.put("total", total);
+    if (!page.isStory() && total > news.size()) renderArgs.put("nextCursor", news.get(news.size() - 1).path);
     render("Web/templates/news.html");
   }
 
-  private static List<Map.Entry<String, Float>> tagFreq(WebPage page) {
-    Map<String, AtomicInteger> tagMap = indexer.tagsFreqByTopPage.get(page.topParentName());
-    if (tagMap == null) return null;
-
-    int total = 0;
-    List<Map.Entry<String, AtomicInteger>> tags = new ArrayList<>(tagMap.size());
-    for (Map.Entry<String, AtomicInteger> tag : tagMap.entrySet()) {
-      tags.add(tag);
-      total += tag.getValue().intValue();
-    }
-    tags.sort(comparingInt(t -> t.getValue().intValue()));
-
-    LinkedList<Map.Entry<String, Float>> result = new LinkedList<>();
-    boolean even = false;
-    for (Map.Entry<String, AtomicInteger> tag : tags) {
-      Map.Entry<String, Float> tagFreq = new HashMap.SimpleEntry<>(tag.getKey(), tag.getValue().floatValue()/total);
-      if (even) result.addFirst(tagFreq); else result.add(tagFreq);
-      even = !even;
-    }
-    return result;
-  }
-
   static String fixEncodingForIE(String value) throws UnsupportedEncodingException {
     if (isEmpty(value) || value.charAt(0) < 32000) return value;
     // TODO: this is a workaround for double-bug in IE + Netty
@@ -220,19 +228,9 @@ public class Web extends RebelController {
     return new String(bytes, "UTF-8");
   }
 
-  static <T> List<T> limit(List<T> list, int limit) {
-    return list.subList(0, min(list.size(), limit));
-  }
-
   public void sitemap() {
-    try {
-      JPA.startTx(JPA.DEFAULT, true);
-      WebPage root = rootForLocale();
-      renderTemplate(ImmutableMap.of("root", root));
-    }
-    finally {
-      JPA.closeTx(JPA.DEFAULT);
-    }
+    WebPage root = rootForLocale();
+    renderTemplate(ImmutableMap.of("root", root));
   }
 
   public void robotsTxt() {
@@ -249,7 +247,7 @@ public class Web extends RebelController {
 
   private void appendToSitemapRecursively(Document sitemap, WebPage page) {
     for (WebPage child : page.children()) {
-      appendEntryToSitemap(sitemap, child.path, child.dir.lastModified(), "daily");
+      appendEntryToSitemap(sitemap, child.path, child.modified(), "daily");
       appendToSitemapRecursively(sitemap, child);
     }
   }
@@ -322,20 +320,18 @@ public class Web extends RebelController {
 
   public void thumbnail(String path, String name, int height) throws IOException {
     File imgFile = WebPage.forPath(path).dir.child(name).getRealFile();
-    BufferedImage img = ImageIO.read(imgFile);
-    BufferedImage resized = new BufferedImage(img.getWidth() * height / img.getHeight(), height, img.getType());
-    Graphics2D g = resized.createGraphics();
-    g.setRenderingHint(KEY_INTERPOLATION, VALUE_INTERPOLATION_BILINEAR);
-    g.setRenderingHint(KEY_RENDERING, VALUE_RENDER_QUALITY);
-    g.setRenderingHint(KEY_ANTIALIASING, VALUE_ANTIALIAS_ON);
-    g.drawImage(img, 0, 0, resized.getWidth(), resized.getHeight(), null);
-    g.dispose();
-    g.setComposite(AlphaComposite.Src);
-
-    ByteArrayOutputStream out = new ByteArrayOutputStream((int) imgFile.length());
-    ImageIO.write(resized, "png", out);
-    Http.Response.current().cacheFor(String.valueOf(imgFile.lastModified()), "30d", imgFile.lastModified());
-    renderBinary(new ByteArrayInputStream(out.toByteArray()), imgFile.getName(), "image/png", true);
+    if (!imgFile.isFile()) notFound();
+    File thumbnail;
+    try {
+      thumbnail = Thumbnails.get(imgFile, height);
+    }
+    catch (RejectedExecutionException e) {
+      response.setHeader("Retry-After", "1");
+      error(503, "Too many thumbnails are being generated");
+      return;
+    }
+    Http.Response.current().cacheFor("30d"); // RenderStaticFile sets ETag and Last-Modified of the thumbnail itself
+    throw new RenderStaticFile(thumbnail);
   }
 
   private static void addTo(SimpleEmail msg, String addresses) throws EmailException {
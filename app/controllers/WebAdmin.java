@@ -5,6 +5,7 @@ import com.google.common.collect.LinkedListMultimap;
 import com.google.common.collect.Multimap;
 import com.google.common.net.InetAddresses;
 import models.WebPage;
+import models.WebPageTree;
 import org.apache.commons.io.FilenameUtils;
 import org.apache.commons.io.IOUtils;
 import org.slf4j.Logger;
@@ -17,7 +18,14 @@ import play.rebel.RebelController;
 import play.security.AuthenticationService;
 import play.security.Secured;
 import play.vfs.VirtualFile;
+import plugins.WebContentPlugin;
+import util.ContentPartCache;
+import util.Git;
 import util.Git.*;
+import util.GitRecords;
+import util.LastCommits;
+import util.RenderCache;
+import util.WebPageIndexer;
 
 import javax.inject.Inject;
 import java.io.*;
@@ -32,6 +40,7 @@ import java.util.regex.Pattern;
 
 import static controllers.Web.isAllowed;
 import static java.util.Arrays.asList;
+import static java.util.Collections.singleton;
 import static models.WebPage.ROOT;
 import static models.WebPage.canonicalPath;
 import static org.apache.commons.io.FileUtils.copyDirectory;
@@ -48,19 +57,21 @@ public class WebAdmin extends RebelController {
 
   public void status() throws IOException, InterruptedException, ExecException {
     git("add", ".");
-    String status = git("status", "--porcelain");
+    GitRecords<FileStatus> status = Git.status();
 
     // remove added and later deleted uncommitted files
-    for (String line : status.split("\r?\n")) {
-      String[] parts = line.split("\\s+", 2);
-      if ("AD".equals(parts[0])) // Added/Deleted
-        git("rm", "--cached", parts[1]);
+    boolean removed = false;
+    for (FileStatus file : status) {
+      if ("AD".equals(file.code)) { // Added/Deleted
+        git("rm", "--cached", file.path);
+        removed = true;
+      }
     }
-    status = git("status", "--porcelain");
+    if (removed) status = Git.status();
 
     Set<String> unpushed = new HashSet<>(asList(split(git("log", "origin/master..master", "--pretty=format:%h"), "\n")));
 
-    String[] log = git("log", "--pretty=format:%h%x09%ct%x09%an%x09%ae%x09%s%x09%b%x03", "--max-count=50").split("\u0003");
+    GitRecords<Commit> log = Git.log("--max-count=50");
     renderTemplate(ImmutableMap.of("status", status, "log", log, "unpushed", unpushed));
   }
 
@@ -85,7 +96,10 @@ public class WebAdmin extends RebelController {
         "-m", defaultIfEmpty(message, "no message specified"),
         "--author=" + authenticationService.connected() + " <" + authenticationService.connected() + ">"));
     if (paths != null) args.addAll(asList(paths));
+    String before = head();
     String committed = git(args);
+    LastCommits.updateInBackground(before, head());
+    WebPageIndexer.getInstance().indexChangesInBackground();
 
     flash.put("success", committed);
     redirect("/webadmin/push");
@@ -108,19 +122,29 @@ public class WebAdmin extends RebelController {
   public void history(String path) throws InterruptedException, IOException, ExecException {
     validateGitPaths(path);
     WebPage page = WebPage.forPath(path);
-    List<String> args = new ArrayList<>(asList("log", "--pretty=format:%h%x09%ct%x09%an%x09%ae%x09%s%x09%b%x03", "--max-count=50"));
     if (path.startsWith("/")) path = path.substring(1);
+    List<String> files = new ArrayList<>();
+    Set<String> lastCommits = new LinkedHashSet<>();
     for (VirtualFile file : page.dir.list()) {
-      if (!file.isDirectory()) args.add(path + file.getName());
+      if (file.isDirectory()) continue;
+      files.add(path + file.getName());
+      LastCommits.Commit commit = LastCommits.lastCommit(path + file.getName());
+      if (commit != null) lastCommits.add(commit.id);
     }
-    String[] log = git(args).split("\u0003");
+    // newer commits can't change the files, so git doesn't have to walk them, unless the index is behind
+    if (lastCommits.isEmpty() || !LastCommits.isIndexed(head())) lastCommits = singleton("HEAD");
+    List<String> args = new ArrayList<>(asList("--max-count=50"));
+    args.addAll(lastCommits);
+    args.add("--");
+    args.addAll(files);
+    GitRecords<Commit> log = Git.log(args.toArray(new String[args.size()]));
     renderTemplate(ImmutableMap.of("page", page, "log", log));
   }
 
   public void diff(String path, String revision) throws InterruptedException, IOException, ExecException {
     validateGitPaths(path);
     WebPage page = WebPage.forPath(path);
-    List<String> args = new ArrayList<>(asList("diff", revision));
+    List<String> args = new ArrayList<>(asList(revision));
     if (path.startsWith("/")) path = path.substring(1);
     if (isNotEmpty(path)) {
       args.add("--");
@@ -128,15 +152,16 @@ public class WebAdmin extends RebelController {
         if (!file.isDirectory()) args.add(path + file.getName());
       }
     }
-    String diff = git(args);
+    GitRecords<FileDiff> diff = Git.diff(args.toArray(new String[args.size()]));
     renderTemplate(ImmutableMap.of("page", page, "revision", revision, "diff", diff));
   }
 
-  public void downloadRevision(String path, String revision) throws IOException {
+  public void downloadRevision(String path, String revision) throws IOException, InterruptedException {
     validateGitPaths(path);
     if (path.startsWith("/")) path = path.substring(1);
-    InputStream stream = gitForStream("show", revision + ":" + path);
-    renderBinary(stream, FilenameUtils.getName(path), true);
+    Blob content = Git.open(revision, path);
+    if (content == null) notFound(revision + ":" + path);
+    renderBinary(content, FilenameUtils.getName(path), content.size, true);
   }
 
   public void restore(String path, String revision) throws InterruptedException, IOException, ExecException {
@@ -149,6 +174,7 @@ public class WebAdmin extends RebelController {
       if (!file.isDirectory()) args.add(path + file.getName());
     }
     git(args);
+    WebPageTree.refresh(page.path);
     logger.info("Restored " + page.path + " to " + revision);
     redirect(page.path);
   }
@@ -158,6 +184,8 @@ public class WebAdmin extends RebelController {
     validateGitPaths(filePath);
     if (status.startsWith("A")) git("rm", "-f", filePath);
     else git("checkout", "HEAD", "--", filePath);
+    if (filePath.endsWith("metadata.properties")) WebPageTree.refresh(FilenameUtils.getPath(filePath));
+    else RenderCache.invalidate(FilenameUtils.getPath(filePath));
     redirect("/webadmin/status");
   }
 
@@ -174,6 +202,7 @@ public class WebAdmin extends RebelController {
     try (OutputStream out = page.dir.child(part).outputstream()) {
       IOUtils.copy(request.body, out);
     }
+    RenderCache.invalidate(page.path);
     renderText(Messages.get("web.admin.saved"));
   }
 
@@ -205,7 +234,7 @@ public class WebAdmin extends RebelController {
             else if (!url.startsWith("mailto:") && !url.startsWith("cryptmail:") && !url.startsWith("tel:")) {
               url = url.replaceFirst("\\?.*$", "");
 
-              Map<String, String> route = Router.route("GET", url);
+              Map<String, String> route = WebContentPlugin.route(url);
 
               if (route.isEmpty() && url.startsWith("/")) {
                 verifyURL(ROOT, url);
@@ -312,6 +341,8 @@ public class WebAdmin extends RebelController {
         IOUtils.copy(in, out);
       }
     }
+    ContentPartCache.invalidate(page.path);
+    RenderCache.invalidate(page.path);
     if (!request.querystring.contains("path=")) request.querystring += "&path=" + path;
     redirect(Router.reverse("WebAdmin.browse").url + "?" + request.querystring);
   }
@@ -323,6 +354,8 @@ public class WebAdmin extends RebelController {
     VirtualFile file = page.dir.child(name);
     checkFileBelongsToCmsContentRoot(file);
     file.getRealFile().delete();
+    ContentPartCache.invalidate(page.path);
+    RenderCache.invalidate(page.path);
     if (redirectTo != null) redirect(redirectTo);
     if (!request.querystring.contains("path=")) request.querystring += "&path=" + path;
     redirect(Router.reverse("WebAdmin.browse").url + "?" + request.querystring);
@@ -353,6 +386,7 @@ public class WebAdmin extends RebelController {
     if (page.dir.exists()) forbidden();
     page.dir.getRealFile().mkdirs();
     page.dir.child("metadata.properties").write("title: " + title + "\ntemplate: " + template + "\n");
+    WebPageTree.refresh(page.path);
     redirect(defaultIfEmpty(redirectTo, page.path));
   }
 
@@ -378,6 +412,7 @@ public class WebAdmin extends RebelController {
     vdir.child("content.html").write(Messages.get("web.admin.defaultContent"));
 
     WebPage.News page = WebPage.forPath(vdir);
+    WebPageTree.refresh(page.path);
     redirect(page.path);
   }
 
@@ -395,6 +430,7 @@ public class WebAdmin extends RebelController {
     name = name.replaceAll("\\W", "");
     String content = defaultContent(defaultString(redirectTo, page.path));
     page.dir.child(name + ".html").write("<h3>" + title + "</h3>\n\n" + content);
+    RenderCache.invalidate(page.path);
     redirect(defaultIfEmpty(redirectTo, page.path));
   }
 
@@ -418,18 +454,21 @@ public class WebAdmin extends RebelController {
 
     Map<String, String> allParams = params.allSimple();
     allParams.keySet().removeAll(asList("path", "body", "authenticityToken", "action"));
-    page.metadata.putAll(allParams);
+    Properties metadata = new Properties();
+    metadata.putAll(page.metadata);
+    metadata.putAll(allParams);
 
-    if (!allParams.containsKey("hidden")) page.metadata.remove("hidden");
-    for (String key : page.metadata.stringPropertyNames()) {
-      if (isEmpty(page.metadata.getProperty(key))) page.metadata.remove(key);
+    if (!allParams.containsKey("hidden")) metadata.remove("hidden");
+    for (String key : metadata.stringPropertyNames()) {
+      if (isEmpty(metadata.getProperty(key))) metadata.remove(key);
     }
 
     try (Writer out = new OutputStreamWriter(page.dir.child("metadata.properties").outputstream(), "UTF-8")) {
-      for (String key : page.metadata.stringPropertyNames()) {
-        out.write(key + ": " + page.metadata.getProperty(key).replace("\n", "\\n") + "\n");
+      for (String key : metadata.stringPropertyNames()) {
+        out.write(key + ": " + metadata.getProperty(key).replace("\n", "\\n") + "\n");
       }
     }
+    WebPageTree.refresh(page.path);
     redirect(page.path);
   }
 
@@ -437,6 +476,7 @@ public class WebAdmin extends RebelController {
     checkAuthenticity();
     WebPage page = WebPage.forPath(path);
     copyDirectory(page.dir.getRealFile(), new File(page.dir.getRealFile().getParentFile(), name));
+    WebPageTree.refresh(page.parent().path + name);
     redirect(page.parent().path + name);
   }
 
@@ -444,6 +484,7 @@ public class WebAdmin extends RebelController {
     checkAuthenticity();
     WebPage page = WebPage.forPath(path);
     deleteDirectory(page.dir.getRealFile());
+    WebPageTree.refresh(page.path);
     redirect(page.parent().path);
   }
 }
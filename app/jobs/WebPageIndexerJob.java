@@ -6,12 +6,16 @@ import play.jobs.Job;
 import play.jobs.OnApplicationStart;
 import util.WebPageIndexer;
 
+/**
+ * Brings the index up to date on start, later changes are indexed after every pull and publish, see WebPageIndexer.indexChangesInBackground().
+ * Periodic runs catch up with commits made any other way and do nothing if the index is at HEAD already.
+ */
 @OnApplicationStart(async = true) @Every("6h") @NoTransaction
 public class WebPageIndexerJob extends Job {
   private static final WebPageIndexer indexer = WebPageIndexer.getInstance();
 
   @Override public void doJob() throws Exception {
     if (indexer.shouldIndex())
-      indexer.indexWebPages();
+      indexer.indexChanges();
   }
 }
@@ -0,0 +1,169 @@
+package models;
+
+import util.TagCloud;
+
+import java.text.SimpleDateFormat;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+
+import static java.util.Collections.emptyList;
+import static org.apache.commons.lang.StringUtils.isEmpty;
+import static org.apache.commons.lang.StringUtils.split;
+
+/**
+ * Visible news of one news section (page with template "news") sorted from newest to oldest,
+ * with posting lists per tag, so that news pages don't need to walk the content dir.
+ */
+public class NewsIndex {
+  private static final Comparator<Story> NEWEST_FIRST = (a, b) -> {
+    if (a.date != b.date) return a.date > b.date ? -1 : 1;
+    return comparePaths(b.path, a.path);
+  };
+
+  private static final Comparator<String> ARCHIVE_ORDER = Comparator.comparing((String key) -> key.substring(0, 4)).reversed()
+      .thenComparing(String::length).thenComparing(Comparator.reverseOrder());
+
+  public final String rootPath;
+  /** pages the index was built of */
+  private final List<WebPage> pages;
+  private final List<Story> stories;
+  private final Map<String, List<Story>> storiesByTag;
+  private final Map<String, List<Map.Entry<String, Float>>> tagClouds = new ConcurrentHashMap<>();
+
+  NewsIndex(String rootPath, List<WebPage> pages) {
+    this.rootPath = rootPath;
+    this.pages = pages;
+    List<Story> stories = new ArrayList<>();
+    Map<String, List<Story>> storiesByTag = new HashMap<>();
+    for (WebPage page : pages) {
+      if (!page.hasMetadata() || !page.isVisible()) continue;
+      Story story = new Story(page);
+      stories.add(story);
+      for (String tag : story.tags) {
+        storiesByTag.computeIfAbsent(tag, t -> new ArrayList<>()).add(story);
+      }
+    }
+    stories.sort(NEWEST_FIRST);
+    for (List<Story> tagged : storiesByTag.values()) tagged.sort(NEWEST_FIRST);
+    this.stories = stories;
+    this.storiesByTag = storiesByTag;
+  }
+
+  /** @return whether the index was built of the same page instances, which snapshots reuse for unchanged pages */
+  boolean isOf(List<WebPage> pages) {
+    if (pages.size() != this.pages.size()) return false;
+    for (int i = 0; i < pages.size(); i++) {
+      if (pages.get(i) != this.pages.get(i)) return false;
+    }
+    return true;
+  }
+
+  /**
+   * @param pathPrefix only news below this page are returned, e.g. year or month
+   * @param tag optional tag to filter by
+   * @param before optional path of the last news shown previously, only older news are returned
+   */
+  public List<WebPage> latest(String pathPrefix, String tag, String before, int limit) {
+    List<WebPage> result = new ArrayList<>(Math.min(limit, 64));
+    List<Story> candidates = candidates(tag);
+    for (int i = startIndex(candidates, before); i < candidates.size() && result.size() < limit; i++) {
+      Story story = candidates.get(i);
+      if (story.isBelow(pathPrefix)) result.add(story.page);
+    }
+    return result;
+  }
+
+  public int count(String pathPrefix, String tag, String before) {
+    int count = 0;
+    List<Story> candidates = candidates(tag);
+    for (int i = startIndex(candidates, before); i < candidates.size(); i++) {
+      if (candidates.get(i).isBelow(pathPrefix)) count++;
+    }
+    return count;
+  }
+
+  /** @return number of news per year ("yyyy") and month ("yyyy/MM"), newest first, every year followed by its months */
+  public SortedMap<String, Integer> archive(String pathPrefix, String tag) {
+    SortedMap<String, Integer> archive = new TreeMap<>(ARCHIVE_ORDER);
+    SimpleDateFormat month = new SimpleDateFormat("yyyy/MM");
+    for (Story story : candidates(tag)) {
+      if (!story.isBelow(pathPrefix)) continue;
+      String yearMonth = month.format(new Date(story.date));
+      archive.merge(yearMonth.substring(0, 4), 1, Integer::sum);
+      archive.merge(yearMonth, 1, Integer::sum);
+    }
+    return archive;
+  }
+
+  /** @return all distinct tags with number of visible news using them */
+  public Map<String, Integer> tagCounts() {
+    Map<String, Integer> counts = new HashMap<>();
+    for (Map.Entry<String, List<Story>> tag : storiesByTag.entrySet()) {
+      counts.put(tag.getKey(), tag.getValue().size());
+    }
+    return counts;
+  }
+
+  /** @return distinct tags of visible news below the given page, e.g. year or month, with number of news using them */
+  public Map<String, Integer> tagCounts(String pathPrefix) {
+    Map<String, Integer> counts = new HashMap<>();
+    for (Story story : stories) {
+      if (!story.isBelow(pathPrefix)) continue;
+      for (String tag : story.tags) counts.merge(tag, 1, Integer::sum);
+    }
+    return counts;
+  }
+
+  /** @return tag cloud of news below the given page, computed once per index */
+  public List<Map.Entry<String, Float>> tagCloud(String pathPrefix) {
+    return tagClouds.computeIfAbsent(pathPrefix, p -> TagCloud.of(tagCounts(p)));
+  }
+
+  private List<Story> candidates(String tag) {
+    if (isEmpty(tag)) return stories;
+    List<Story> tagged = storiesByTag.get(tag.trim());
+    return tagged != null ? tagged : emptyList();
+  }
+
+  private static int startIndex(List<Story> candidates, String before) {
+    if (isEmpty(before)) return 0;
+    Date date = WebPage.News.parseDate(before);
+    Story cursor = new Story(WebPageTree.normalize(before), date != null ? date.getTime() : Long.MAX_VALUE, null);
+    int i = Collections.binarySearch(candidates, cursor, NEWEST_FIRST);
+    return i >= 0 ? i + 1 : -i - 1;
+  }
+
+  /** Compares paths without the trailing slash, so that /2013/05/10-1/ comes after /2013/05/10/ */
+  private static int comparePaths(String a, String b) {
+    int length = Math.min(a.length(), b.length()) - 1;
+    for (int i = 0; i < length; i++) {
+      if (a.charAt(i) != b.charAt(i)) return a.charAt(i) - b.charAt(i);
+    }
+    return a.length() - b.length();
+  }
+
+  private static final class Story {
+    final String path;
+    final long date;
+    final WebPage page;
+    final List<String> tags = new ArrayList<>();
+
+    Story(String path, long date, WebPage page) {
+      this.path = path;
+      this.date = date;
+      this.page = page;
+    }
+
+    Story(WebPage page) {
+      this(page.path, page.date().getTime(), page);
+      for (String tag : split(page.metadata.getProperty("tags", ""), ",")) {
+        tag = tag.trim();
+        if (!tag.isEmpty() && !tags.contains(tag)) tags.add(tag);
+      }
+    }
+
+    boolean isBelow(String pathPrefix) {
+      return path.startsWith(pathPrefix) && !path.equals(pathPrefix);
+    }
+  }
+}
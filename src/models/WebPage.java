@@ -6,6 +6,10 @@ import play.Play;
 import play.i18n.Lang;
 import play.templates.JavaExtensions;
 import play.vfs.VirtualFile;
+import util.ContentPartCache;
+import util.LastCommits;
+import util.LinkScanner;
+import util.PathPrefixTrie;
 
 import java.io.File;
 import java.io.IOException;
@@ -14,7 +18,6 @@ import java.io.Reader;
 import java.text.ParseException;
 import java.text.SimpleDateFormat;
 import java.util.*;
-import java.util.Map.Entry;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
@@ -23,7 +26,6 @@ import static java.lang.String.format;
 import static java.util.Arrays.asList;
 import static java.util.Collections.reverse;
 import static java.util.Collections.sort;
-import static java.util.regex.Pattern.DOTALL;
 import static org.apache.commons.lang.StringUtils.*;
 import static play.libs.Codec.byteToHexString;
 import static util.UrlEncoder.safeUrlEncode;
@@ -32,7 +34,6 @@ public class WebPage implements Comparable<WebPage> {
   private static final Logger logger = LoggerFactory.getLogger(WebPage.class);
   public static final Set<String> ALLOWED_FILE_TYPES = new HashSet<>(asList(Play.configuration.getProperty("web.downloadable.files", "png,jpg,gif,pdf,rtf,swf,mp3,flv,zip").split("\\s*,\\s*")));
   public static final String BOM = new String(new byte[]{(byte)0xEF, (byte)0xBB, (byte)0xBF});
-  static final Pattern LINK_PATTERN = Pattern.compile("<a([^>]*?)href=\"([^\"]+?)\"([^>]*?)>(\\s*[^<].+?[^>]\\s*)</a>", DOTALL);
 
   public static WebPage ROOT = new WebPage();
 
@@ -43,6 +44,8 @@ public class WebPage implements Comparable<WebPage> {
   public String title;
   public String template;
   public int order;
+  /** modification time of dir known from the page tree snapshot, 0 if unknown */
+  long lastModified;
 
   /** ROOT */
   WebPage() {
@@ -52,11 +55,15 @@ public class WebPage implements Comparable<WebPage> {
   }
 
   WebPage(VirtualFile dir, String path) {
+    this(dir, path, loadMetadata(dir));
+  }
+
+  WebPage(VirtualFile dir, String path, Properties metadata) {
     this.dir = dir;
     this.path = path.endsWith("/") ? path : path + "/";
     level = countMatches(this.path, "/") - 1;
 
-    metadata = loadMetadata(dir);
+    this.metadata = metadata;
     title = metadata.getProperty("title");
     if (isEmpty(title)) title = generateTitle();
     template = metadata.getProperty("template", "custom");
@@ -73,7 +80,17 @@ public class WebPage implements Comparable<WebPage> {
     return dir.getName();
   }
 
+  /** @return the same page linked to another path, e.g. with contentFrom */
+  WebPage withPath(String path) {
+    WebPage page = new WebPage(dir, path, metadata);
+    page.lastModified = lastModified;
+    return page;
+  }
+
   public static WebPage rootForLocale() {
+    WebPageTree tree = WebPageTree.current();
+    WebPage root = tree != null ? tree.rootForLocale(Lang.get()) : null;
+    if (root != null) return root;
     return ROOT.dir.child(Lang.get()).exists() ? forPath("/" + Lang.get()) : ROOT;
   }
 
@@ -97,18 +114,29 @@ public class WebPage implements Comparable<WebPage> {
     return VirtualFile.open(new File(contentParent.dir.getRealFile(), file.getRealFile().getPath().replace(parent.getPath(), "")));
   }
 
+  @SuppressWarnings("unchecked")
   public static <P extends WebPage> P forPath(String path) {
+    WebPage page = fromTree(path);
+    if (page != null) return (P)page;
     return forPath(toVirtualFile(path), path);
   }
 
+  private static WebPage fromTree(String path) {
+    WebPageTree tree = WebPageTree.current();
+    return tree != null ? tree.get(path) : null;
+  }
+
   @SuppressWarnings("unchecked")
   static <P extends WebPage> P forPath(VirtualFile dir, String path) {
     if (News.isNews(path)) return (P)new News(dir, path);
     else return (P)new WebPage(dir, path);
   }
 
+  @SuppressWarnings("unchecked")
   public static <P extends WebPage> P forPath(VirtualFile dir) {
     String path = dir.getRealFile().getPath().replace(ROOT.dir.getRealFile().getPath(), "").replace('\\', '/');
+    WebPage page = fromTree(path);
+    if (page != null) return (P)page;
     return forPath(dir, path);
   }
 
@@ -123,11 +151,14 @@ public class WebPage implements Comparable<WebPage> {
   }
 
   public List<WebPage> children() {
+    WebPageTree tree = WebPageTree.current();
+    List<WebPage> cached = tree != null ? tree.children(this) : null;
+    if (cached != null) return new ArrayList<>(cached);
+
     List<WebPage> children = new ArrayList<>();
     if (metadata.getProperty("contentFrom") != null) {
       for (WebPage child : forPath(metadata.getProperty("contentFrom")).children()) {
-        child.path = path + child.dir.getName() + "/";
-        children.add(child);
+        children.add(child.withPath(path + child.dir.getName() + "/"));
       }
     }
 
@@ -173,7 +204,7 @@ public class WebPage implements Comparable<WebPage> {
     return dir.child(filename).contentAsString();
   }
 
-  private static Properties loadMetadata(VirtualFile dir) {
+  static Properties loadMetadata(VirtualFile dir) {
     VirtualFile metaFile = dir.child("metadata.properties");
     if (metaFile.exists()) {
       try (Reader reader = new InputStreamReader(metaFile.inputstream(), "UTF-8")) {
@@ -198,62 +229,94 @@ public class WebPage implements Comparable<WebPage> {
     else if (isNotEmpty(metadata.getProperty("contentFrom")))
       return contentPartsFromAnotherPage(forPath(metadata.getProperty("contentFrom")));
 
+    return contentParts(false);
+  }
+
+  private Map<String, String> contentParts(boolean linked) {
     Map<String, String> parts = new HashMap<>();
     for (VirtualFile file : dir.list()) {
       if (file.getName().endsWith(".html")) {
         String name = substring(file.getName(), 0, -5);
-        parts.put(name, "<div class=\"" + name + " editable\">" + processContent(file.contentAsString()) + "</div>");
+        parts.put(name, ContentPartCache.get(path, file, linked, () -> {
+          String part = "<div class=\"" + name + " editable\">" + processContent(file.contentAsString()) + "</div>";
+          return linked ? fixLinkedPaths(part) : part;
+        }));
       }
     }
     return parts;
   }
 
+  /** @return page whose files contentParts() consist of */
+  public WebPage contentSource() {
+    if ("true".equals(metadata.getProperty("contentFromNewestChild")))
+      return getLast(children()).contentSource();
+    else if (isNotEmpty(metadata.getProperty("contentFrom")))
+      return forPath(metadata.getProperty("contentFrom")).contentSource();
+    return this;
+  }
+
   private WebPage getLast(List<WebPage> children) {
     return children.get(children.size()-1);
   }
 
   private Map<String, String> contentPartsFromAnotherPage(WebPage page) {
-    template = page.template;
-    Map<String, String> parts = page.contentParts();
-    for (Entry<String, String> entry : parts.entrySet()) {
-      // fix images and links
-      parts.put(entry.getKey(), entry.getValue().replaceAll("(src|href)=\"([^/:]+?)\"", "$1=\"" + page.path + "$2\""));
-    }
-    return parts;
+    // pages of the snapshot are shared and get the template when it is built
+    if (fromTree(path) != this) template = page.template;
+    // parts taken from yet another page already have their links fixed
+    return page.takesContentFromAnotherPage() ? page.contentParts() : page.contentParts(true);
+  }
+
+  private boolean takesContentFromAnotherPage() {
+    return "true".equals(metadata.getProperty("contentFromNewestChild")) || isNotEmpty(metadata.getProperty("contentFrom"));
+  }
+
+  private String fixLinkedPaths(String part) {
+    // fix images and links
+    return part.replaceAll("(src|href)=\"([^/:]+?)\"", "$1=\"" + path + "$2\"");
   }
 
   String processContent(String content) {
     content = removeBOM(content);
-    Matcher m = LINK_PATTERN.matcher(content);
-    StringBuffer result = new StringBuffer();
-    while (m.find()) {
-      String filename = m.group(2);
-      String filetype = filename.substring(filename.lastIndexOf('.') + 1);
-      if (m.group(1).contains("class=") || m.group(3).contains("class=")) {
-        m.appendReplacement(result, m.group());
-      }
-      else if (filename.startsWith("http")) {
-        m.appendReplacement(result, "<a$1class=\"external\" href=\"$2\"$3>$4</a>");
-      }
-      else if (filename.startsWith("mailto:")) {
-        String email = m.group(2).replace("mailto:", "");
-        String href = byteToHexString(email.getBytes());
-        String text = m.group(4);
-        if (text.equals(email)) text = href;
-        m.appendReplacement(result, "<a$1class=\"email\" href=\"cryptmail:" + href + "\"$3>" + text + "</a>");
-      }
-      else if (filename.contains("://") || !ALLOWED_FILE_TYPES.contains(filetype))
-        m.appendReplacement(result, "<a$1href=\"" + safeUrlEncode(m.group(2)) + "\"$3>$4</a>");
-      else {
-        VirtualFile file = (filename.startsWith("/") ? ROOT.dir : dir).child(filename);
-        double lengthKb = file.length() / 1024.0;
-        String size = lengthKb > 1024 ? format("%.1f Mb", lengthKb / 1024) : format("%.0f Kb", lengthKb);
-        m.appendReplacement(result, "<a$1class=\"download " + filetype + (file.exists() ? "" : " unavailable") + "\" href=\"" + (filename.startsWith("/") ? "" : path) + safeUrlEncode(m.group(2)) + "\"$3>" +
-          "$4 (" + filetype.toUpperCase() + ", " + size + ")</a>");
-      }
+    LinkScanner links = new LinkScanner(content);
+    StringBuilder result = new StringBuilder(content.length() + content.length() / 16);
+    int last = 0;
+    while (links.find()) {
+      result.append(content, last, links.start());
+      appendLink(result, links);
+      last = links.end();
+    }
+    return result.append(content, last, content.length()).toString();
+  }
+
+  private void appendLink(StringBuilder result, LinkScanner link) {
+    String before = link.group(1), filename = link.group(2), after = link.group(3), text = link.group(4);
+    String filetype = filename.substring(filename.lastIndexOf('.') + 1);
+    if (before.contains("class=") || after.contains("class=")) {
+      result.append(link.group());
+    }
+    else if (filename.startsWith("http")) {
+      result.append("<a").append(before).append("class=\"external\" href=\"").append(filename).append('"').append(after).append('>')
+          .append(text).append("</a>");
+    }
+    else if (filename.startsWith("mailto:")) {
+      String email = filename.replace("mailto:", "");
+      String href = byteToHexString(email.getBytes());
+      if (text.equals(email)) text = href;
+      result.append("<a").append(before).append("class=\"email\" href=\"cryptmail:").append(href).append('"').append(after).append('>')
+          .append(text).append("</a>");
+    }
+    else if (filename.contains("://") || !ALLOWED_FILE_TYPES.contains(filetype)) {
+      result.append("<a").append(before).append("href=\"").append(safeUrlEncode(filename)).append('"').append(after).append('>')
+          .append(text).append("</a>");
+    }
+    else {
+      VirtualFile file = (filename.startsWith("/") ? ROOT.dir : dir).child(filename);
+      double lengthKb = file.length() / 1024.0;
+      String size = lengthKb > 1024 ? format("%.1f Mb", lengthKb / 1024) : format("%.0f Kb", lengthKb);
+      result.append("<a").append(before).append("class=\"download ").append(filetype).append(file.exists() ? "" : " unavailable")
+          .append("\" href=\"").append(filename.startsWith("/") ? "" : path).append(safeUrlEncode(filename)).append('"').append(after).append('>')
+          .append(text).append(" (").append(filetype.toUpperCase()).append(", ").append(size).append(")</a>");
     }
-    m.appendTail(result);
-    return result.toString();
   }
 
   @Override public int compareTo(WebPage that) {
@@ -357,7 +420,14 @@ public class WebPage implements Comparable<WebPage> {
   }
 
   public Date date() {
-    return new Date(dir.lastModified());
+    return new Date(modified());
+  }
+
+  /** @return time of the last commit changing the page if known, so that it is the same on all nodes */
+  public long modified() {
+    long committed = LastCommits.lastModified(path);
+    if (committed > 0) return committed;
+    return lastModified > 0 ? lastModified : dir.lastModified();
   }
 
   private static void addChildrenRecursively(List<WebPage> pages, WebPage page) {
@@ -385,19 +455,34 @@ public class WebPage implements Comparable<WebPage> {
   }
 
   public static class News extends WebPage {
-    public static List<String> pathPrefixes = new ArrayList<>();
+    private static volatile PathPrefixTrie pathPrefixes = PathPrefixTrie.EMPTY;
 
     public News(VirtualFile dir, String path) {
       super(dir, path);
     }
 
+    News(VirtualFile dir, String path, Properties metadata) {
+      super(dir, path, metadata);
+    }
+
+    @Override WebPage withPath(String path) {
+      News page = new News(dir, path, metadata);
+      page.lastModified = lastModified;
+      return page;
+    }
+
     @Override protected String generateTitle() {
       if (isMonth()) return JavaExtensions.format(date(), "MMMM");
       else return super.generateTitle();
     }
 
     @Override public Date date() {
-      String path = this.path;
+      Date date = parseDate(path);
+      return date != null ? date : super.date();
+    }
+
+    /** @return date encoded in news path, e.g. /news/2013/05/10-title/, or null */
+    static Date parseDate(String path) {
       if (path.endsWith("/")) path = path.substring(0, path.length()-1);
 
       int lastSlashIndex = path.lastIndexOf('/');
@@ -405,6 +490,7 @@ public class WebPage implements Comparable<WebPage> {
       if (firstDashIndexAfterLastSlash > lastSlashIndex)
         path = path.substring(0, firstDashIndexAfterLastSlash);
 
+      if (path.length() < 10) return null;
       path = path.substring(path.length() - 10);
       try {
         return new SimpleDateFormat("yyyy/MM/dd").parse(path);
@@ -415,7 +501,7 @@ public class WebPage implements Comparable<WebPage> {
           return new SimpleDateFormat("yyyy/MM").parse(path);
         }
         catch (ParseException ignore) {
-          return super.date();
+          return null;
         }
       }
     }
@@ -437,22 +523,26 @@ public class WebPage implements Comparable<WebPage> {
     }
 
     public List<WebPage> findNews(final String tag) {
-      // TODO: need more efficient implementation
-      List<WebPage> news = new ArrayList<>();
-      for (WebPage page : childrenRecursively()) {
-        if (page.hasMetadata() && page.isVisible()
-          && (tag == null || page.metadata.getProperty("tags", "").contains(tag)))
-          news.add(page);
-      }
-      reverse(news);
-      return news;
+      return newsIndex().latest(path, tag, null, Integer.MAX_VALUE);
+    }
+
+    /** @return index of the whole news section this page belongs to */
+    public NewsIndex newsIndex() {
+      WebPage section = this;
+      for (WebPage parent = parent(); parent instanceof News; parent = parent.parent()) section = parent;
+
+      WebPageTree tree = WebPageTree.current();
+      if (tree != null && tree.get(section.path) == section) return tree.newsIndex(section);
+      return new NewsIndex(section.path, section.childrenRecursively());
     }
 
     public static boolean isNews(String path) {
-      for (String prefix : pathPrefixes) {
-        if (path.startsWith(prefix)) return true;
-      }
-      return false;
+      return pathPrefixes.matches(path);
+    }
+
+    /** Replaces all news section paths at once, so that requests never see a partially registered set */
+    public static void setPathPrefixes(Collection<String> prefixes) {
+      pathPrefixes = PathPrefixTrie.of(prefixes);
     }
   }
 }
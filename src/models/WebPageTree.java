@@ -0,0 +1,368 @@
+package models;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import play.Play;
+import play.vfs.VirtualFile;
+import util.RenderCache;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static java.util.Collections.singleton;
+import static java.util.Collections.sort;
+import static java.util.Collections.unmodifiableList;
+import static java.util.Collections.unmodifiableSet;
+import static org.apache.commons.lang.StringUtils.isEmpty;
+
+/**
+ * Immutable in-memory snapshot of the web content directory.
+ * Content changes build a new snapshot that replaces the current one atomically.
+ */
+public class WebPageTree {
+  private static final Logger logger = LoggerFactory.getLogger(WebPageTree.class);
+
+  private static final AtomicLong generations = new AtomicLong();
+  private static volatile WebPageTree current;
+
+  /** increases with every new snapshot */
+  public final long generation = generations.incrementAndGet();
+
+  final WebPage root;
+  /** pages found in the content dir, without those linked with contentFrom */
+  final Map<String, WebPage> scanned;
+  final Map<String, List<WebPage>> ownChildren;
+
+  private final Map<String, WebPage> pages;
+  private final Map<String, List<WebPage>> children;
+  private final Map<String, WebPage> localeRoots;
+  /** built lazily on first access, every snapshot has its own */
+  private final Map<String, NewsIndex> newsIndexes = new ConcurrentHashMap<>();
+  /** indexes of previous snapshots, reused for news sections that still consist of the same pages */
+  private final Map<String, NewsIndex> previousNewsIndexes;
+
+  private WebPageTree(WebPage root, Map<String, WebPage> scanned, Map<String, List<WebPage>> ownChildren,
+                      Map<String, WebPage> pages, Map<String, List<WebPage>> children, Map<String, WebPage> localeRoots,
+                      Map<String, NewsIndex> previousNewsIndexes) {
+    this.root = root;
+    this.scanned = scanned;
+    this.ownChildren = ownChildren;
+    this.pages = pages;
+    this.children = children;
+    this.localeRoots = localeRoots;
+    this.previousNewsIndexes = previousNewsIndexes;
+  }
+
+  /** @return current snapshot or null if it was not built yet for the current WebPage.ROOT */
+  public static WebPageTree current() {
+    WebPageTree tree = current;
+    return tree != null && tree.root == WebPage.ROOT ? tree : null;
+  }
+
+  public static synchronized WebPageTree reload() {
+    long start = System.currentTimeMillis();
+    Builder builder = new Builder(WebPage.ROOT);
+    builder.scan(WebPage.ROOT);
+    current = builder.build();
+    RenderCache.invalidateAll();
+    logger.info("Scanned " + current.pages.size() + " web pages in " + (System.currentTimeMillis() - start) + " ms");
+    return current;
+  }
+
+  /**
+   * Rescans the page at the given path (and everything below it) after it was added, changed or deleted.
+   * Other pages are reused from the current snapshot.
+   */
+  public static void refresh(String path) {
+    refresh(singleton(path));
+  }
+
+  public static synchronized void refresh(Collection<String> paths) {
+    WebPageTree tree = current();
+    if (tree == null || paths.isEmpty()) return;
+
+    Set<String> sortedPaths = new TreeSet<>();
+    for (String path : paths) sortedPaths.add(normalize(path));
+
+    Builder builder = new Builder(tree);
+    List<String> rescanned = new ArrayList<>();
+    for (String path : sortedPaths) {
+      if (isBelowAny(path, rescanned)) continue;
+      String rescannedPath = builder.rescan(path);
+      if (rescannedPath == null) {
+        reload();
+        return;
+      }
+      rescanned.add(rescannedPath);
+    }
+    current = builder.build();
+    invalidateRendered(tree, current, rescanned);
+  }
+
+  /**
+   * Rendered pages show menus and listings of other pages, so all of them are outdated if pages were added or removed
+   * or their metadata has changed. Otherwise only the rescanned pages are, as their other files may have changed.
+   */
+  private static void invalidateRendered(WebPageTree before, WebPageTree after, List<String> rescanned) {
+    Set<String> paths = new HashSet<>();
+    for (String path : before.pages.keySet()) if (isBelowAny(path, rescanned)) paths.add(path);
+    for (String path : after.pages.keySet()) if (isBelowAny(path, rescanned)) paths.add(path);
+    for (String path : paths) {
+      WebPage previous = before.pages.get(path), page = after.pages.get(path);
+      if (previous == null || page == null || !previous.metadata.equals(page.metadata)) {
+        RenderCache.invalidateAll();
+        return;
+      }
+    }
+    RenderCache.invalidate(paths);
+  }
+
+  /** Publishes a snapshot of previously scanned pages, e.g. restored by WebPageTreeStore */
+  static synchronized WebPageTree restore(Collection<WebPage> pages) {
+    Builder builder = new Builder(WebPage.ROOT);
+    for (WebPage page : pages) builder.add(page);
+    builder.sortChildren();
+    current = builder.build();
+    RenderCache.invalidateAll();
+    return current;
+  }
+
+  private static boolean isBelowAny(String path, Collection<String> parents) {
+    for (String parent : parents) {
+      if (path.startsWith(parent)) return true;
+    }
+    return false;
+  }
+
+  public WebPage get(String path) {
+    return pages.get(normalize(path));
+  }
+
+  /** @return paths of all pages, including those linked with contentFrom */
+  public Set<String> paths() {
+    return unmodifiableSet(pages.keySet());
+  }
+
+  /** @return sorted children (including hidden ones) or null if the page is not part of this snapshot */
+  public List<WebPage> children(WebPage page) {
+    return children.get(page.path);
+  }
+
+  /** @return root page for the given language or null if the language is not configured */
+  public WebPage rootForLocale(String lang) {
+    return localeRoots.get(lang);
+  }
+
+  /** @return index of all news below the given news section page, taken from the previous snapshot if the section is unchanged */
+  public NewsIndex newsIndex(WebPage newsRoot) {
+    return newsIndexes.computeIfAbsent(newsRoot.path, path -> {
+      List<WebPage> descendants = new ArrayList<>();
+      addDescendants(path, descendants);
+      NewsIndex previous = previousNewsIndexes.get(path);
+      return previous != null && previous.isOf(descendants) ? previous : new NewsIndex(path, descendants);
+    });
+  }
+
+  private void addDescendants(String path, List<WebPage> result) {
+    List<WebPage> list = children.get(path);
+    if (list == null) return;
+    for (WebPage child : list) {
+      result.add(child);
+      addDescendants(child.path, result);
+    }
+  }
+
+  static String normalize(String path) {
+    if (!path.startsWith("/")) path = "/" + path;
+    if (!path.endsWith("/")) path += "/";
+    return path;
+  }
+
+  static String parentPath(String path) {
+    return path.equals("/") ? null : path.substring(0, path.lastIndexOf('/', path.length() - 2) + 1);
+  }
+
+  private static class Builder {
+    private final WebPage root;
+    private final Map<String, NewsIndex> newsIndexes = new HashMap<>();
+    private final Map<String, WebPage> scanned;
+    private final Map<String, List<WebPage>> ownChildren;
+
+    Builder(WebPage root) {
+      this.root = root;
+      scanned = new HashMap<>();
+      ownChildren = new HashMap<>();
+      scanned.put(root.path, root);
+      ownChildren.put(root.path, new ArrayList<>());
+    }
+
+    Builder(WebPageTree tree) {
+      root = tree.root;
+      newsIndexes.putAll(tree.previousNewsIndexes);
+      newsIndexes.putAll(tree.newsIndexes);
+      scanned = new HashMap<>(tree.scanned);
+      ownChildren = new HashMap<>(tree.ownChildren);
+    }
+
+    void scan(WebPage page) {
+      List<WebPage> children = new ArrayList<>();
+      for (VirtualFile entry : page.dir.list()) {
+        WebPage child = load(page, entry);
+        if (child == null) continue;
+        children.add(child);
+        scanned.put(child.path, child);
+        scan(child);
+      }
+      sort(children);
+      ownChildren.put(page.path, children);
+    }
+
+    WebPage load(WebPage parent, VirtualFile dir) {
+      if (!dir.isDirectory() || dir.getName().startsWith(".")) return null;
+
+      String path = parent.path + dir.getName() + "/";
+      Properties metadata = WebPage.loadMetadata(dir);
+      boolean news = parent instanceof WebPage.News || WebPage.News.isNews(path) || "news".equals(metadata.getProperty("template"));
+      if (!news && metadata.isEmpty()) return null;
+
+      WebPage page = news ? new WebPage.News(dir, path, metadata) : new WebPage(dir, path, metadata);
+      page.lastModified = dir.lastModified();
+      return page;
+    }
+
+    /** @return path of the actually rescanned page (the nearest one that can be attached to the tree) or null for root */
+    String rescan(String path) {
+      String parentPath = parentPath(path);
+      while (parentPath != null && !ownChildren.containsKey(parentPath)) {
+        path = parentPath;
+        parentPath = parentPath(path);
+      }
+      if (parentPath == null) return null;
+
+      remove(path);
+      WebPage parent = scanned.get(parentPath);
+      List<WebPage> siblings = new ArrayList<>(ownChildren.get(parentPath));
+      for (Iterator<WebPage> i = siblings.iterator(); i.hasNext(); ) {
+        if (i.next().path.equals(path)) i.remove();
+      }
+
+      WebPage page = load(parent, parent.dir.child(path.substring(parentPath.length(), path.length() - 1)));
+      if (page != null) {
+        siblings.add(page);
+        scanned.put(page.path, page);
+        scan(page);
+      }
+      sort(siblings);
+      ownChildren.put(parentPath, siblings);
+      return path;
+    }
+
+    void add(WebPage page) {
+      scanned.put(page.path, page);
+      ownChildren.putIfAbsent(page.path, new ArrayList<>());
+      ownChildren.computeIfAbsent(parentPath(page.path), p -> new ArrayList<>()).add(page);
+    }
+
+    void sortChildren() {
+      for (List<WebPage> children : ownChildren.values()) sort(children);
+    }
+
+    void remove(String path) {
+      scanned.keySet().removeIf(p -> p.startsWith(path));
+      ownChildren.keySet().removeIf(p -> p.startsWith(path));
+    }
+
+    WebPageTree build() {
+      Map<String, WebPage> pages = new HashMap<>(scanned);
+      Map<String, List<WebPage>> children = new HashMap<>();
+      for (WebPage page : scanned.values()) {
+        resolveChildren(page, pages, children, new HashSet<>());
+      }
+      resolveTemplates(pages, children);
+
+      Map<String, WebPage> localeRoots = new HashMap<>();
+      for (String lang : Play.langs) {
+        WebPage page = pages.get("/" + lang + "/");
+        if (page == null) page = root.dir.child(lang).exists() ? WebPage.forPath(root.dir.child(lang), "/" + lang) : root;
+        localeRoots.put(lang, page);
+      }
+
+      newsIndexes.keySet().retainAll(pages.keySet());
+      return new WebPageTree(root, scanned, ownChildren, pages, children, localeRoots, newsIndexes);
+    }
+
+    /** Pages taking content from another page are rendered with its template, see WebPage.contentParts() */
+    private void resolveTemplates(Map<String, WebPage> pages, Map<String, List<WebPage>> children) {
+      Map<WebPage, WebPage> replaced = new HashMap<>();
+      for (WebPage page : pages.values()) {
+        WebPage source = null;
+        if ("true".equals(page.metadata.getProperty("contentFromNewestChild"))) {
+          List<WebPage> list = children.get(page.path);
+          if (list != null && !list.isEmpty()) source = list.get(list.size() - 1);
+        }
+        else if (!isEmpty(page.metadata.getProperty("contentFrom"))) {
+          source = pages.get(normalize(page.metadata.getProperty("contentFrom")));
+        }
+        if (source == null) continue;
+        String template = source.metadata.getProperty("template", "custom");
+        if (template.equals(page.template)) continue;
+
+        // instances can be shared with the previous snapshot, so they are copied instead of changed
+        WebPage copy = page.withPath(page.path);
+        copy.template = template;
+        replaced.put(page, copy);
+      }
+
+      for (Map.Entry<WebPage, WebPage> entry : replaced.entrySet()) {
+        WebPage page = entry.getKey(), copy = entry.getValue();
+        pages.put(page.path, copy);
+        if (scanned.get(page.path) == page) scanned.put(page.path, copy);
+      }
+      if (replaced.isEmpty()) return;
+      children.replaceAll((path, list) -> replaceAll(list, replaced));
+      ownChildren.replaceAll((path, list) -> replaceAll(list, replaced));
+    }
+
+    private static List<WebPage> replaceAll(List<WebPage> list, Map<WebPage, WebPage> replaced) {
+      List<WebPage> result = null;
+      for (int i = 0; i < list.size(); i++) {
+        WebPage copy = replaced.get(list.get(i));
+        if (copy == null) continue;
+        if (result == null) result = new ArrayList<>(list);
+        result.set(i, copy);
+      }
+      if (result == null) return list;
+      return list instanceof ArrayList ? result : unmodifiableList(result);
+    }
+
+    private List<WebPage> resolveChildren(WebPage page, Map<String, WebPage> pages, Map<String, List<WebPage>> children, Set<String> visiting) {
+      List<WebPage> resolved = children.get(page.path);
+      if (resolved != null) return resolved;
+
+      List<WebPage> result = new ArrayList<>();
+      String contentFrom = page.metadata.getProperty("contentFrom");
+      if (!isEmpty(contentFrom) && visiting.add(page.path)) {
+        WebPage source = scanned.get(normalize(contentFrom));
+        if (source == null) {
+          logger.warn("Cannot find contentFrom " + contentFrom + " of " + page.path);
+        }
+        else {
+          for (WebPage child : resolveChildren(source, pages, children, visiting)) {
+            WebPage linked = child.withPath(page.path + child.dir.getName() + "/");
+            result.add(linked);
+            if (pages.putIfAbsent(linked.path, linked) == null)
+              children.put(linked.path, resolveChildren(child, pages, children, visiting));
+          }
+        }
+      }
+
+      List<WebPage> own = ownChildren.get(page.path);
+      if (own != null) result.addAll(own);
+      sort(result);
+      resolved = unmodifiableList(result);
+      children.put(page.path, resolved);
+      return resolved;
+    }
+  }
+}
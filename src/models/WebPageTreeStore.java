@@ -0,0 +1,182 @@
+package models;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import play.Play;
+import play.vfs.VirtualFile;
+import util.Git;
+import util.GitRecords;
+
+import java.io.*;
+import java.nio.file.Files;
+import java.util.*;
+
+import static java.nio.file.StandardCopyOption.ATOMIC_MOVE;
+import static java.nio.file.StandardCopyOption.REPLACE_EXISTING;
+import static org.apache.commons.io.FilenameUtils.getPath;
+
+/**
+ * Persists the scanned page tree under Play.tmpDir tagged with the content commit and uncommitted changes,
+ * so that restarts don't need to walk the whole content dir again.
+ */
+public class WebPageTreeStore {
+  private static final Logger logger = LoggerFactory.getLogger(WebPageTreeStore.class);
+  private static final int FORMAT_VERSION = 2;
+
+  /**
+   * Restores the snapshot saved for the content commit, rescanning only directories changed since then.
+   * Files uncommitted when the snapshot was saved or now (e.g. edited in cms or while stopped) are rescanned as well.
+   * Falls back to a full scan if there is no usable snapshot.
+   */
+  public static WebPageTree restoreOrScan() {
+    File file = file();
+    String head = head();
+    if (file != null && head != null && file.exists()) {
+      long start = System.currentTimeMillis();
+      try {
+        List<WebPage> pages = new ArrayList<>();
+        Map<String, String> changed = new HashMap<>();
+        String commit = read(file, pages, changed);
+        Map<String, String> uncommitted = uncommittedFiles();
+        if (commit != null && uncommitted != null) {
+          WebPageTree tree = WebPageTree.restore(pages);
+          uncommitted.forEach((path, status) -> changed.merge(path, status, WebPageTreeStore::moreSignificant));
+          if (!head.equals(commit))
+            Git.changedFiles(commit, head).forEach((path, status) -> changed.merge(path, status, WebPageTreeStore::moreSignificant));
+          Set<String> dirs = changedDirs(changed);
+          if (!dirs.isEmpty()) {
+            WebPageTree.refresh(dirs);
+            tree = WebPageTree.current();
+          }
+          logger.info("Restored " + pages.size() + " web pages of " + commit + " in " + (System.currentTimeMillis() - start) + " ms");
+          return tree;
+        }
+      }
+      catch (IOException | InterruptedException | Git.ExecException e) {
+        logger.warn("Cannot restore web pages from " + file + ": " + e);
+      }
+    }
+    return WebPageTree.reload();
+  }
+
+  public static void save() {
+    WebPageTree tree = WebPageTree.current();
+    File file = file();
+    String head = head();
+    if (tree == null || file == null || head == null) return;
+
+    File tmp = new File(file.getPath() + ".tmp");
+    try {
+      Map<String, String> uncommitted = uncommittedFiles();
+      if (uncommitted == null) {
+        file.delete();
+        return;
+      }
+      try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)))) {
+        write(out, tree, head, uncommitted);
+      }
+      Files.move(tmp.toPath(), file.toPath(), REPLACE_EXISTING, ATOMIC_MOVE);
+    }
+    catch (IOException | InterruptedException | Git.ExecException e) {
+      logger.warn("Cannot save web pages to " + file + ": " + e);
+      tmp.delete();
+    }
+  }
+
+  static void write(DataOutputStream out, WebPageTree tree, String commit, Map<String, String> uncommitted) throws IOException {
+    out.writeInt(FORMAT_VERSION);
+    out.writeUTF(tree.root.dir.getRealFile().getPath());
+    out.writeUTF(commit);
+    out.writeInt(uncommitted.size());
+    for (Map.Entry<String, String> file : uncommitted.entrySet()) {
+      out.writeUTF(file.getKey());
+      out.writeUTF(file.getValue());
+    }
+    out.writeInt(tree.scanned.size() - 1);
+    for (WebPage page : tree.scanned.values()) {
+      if (page == tree.root) continue;
+      out.writeUTF(page.path);
+      out.writeBoolean(page instanceof WebPage.News);
+      out.writeLong(page.lastModified);
+      Set<String> keys = page.metadata.stringPropertyNames();
+      out.writeShort(keys.size());
+      for (String key : keys) {
+        out.writeUTF(key);
+        out.writeUTF(page.metadata.getProperty(key));
+      }
+    }
+  }
+
+  /** @return commit of the stored snapshot or null if it was stored for another content dir or format */
+  static String read(File file, List<WebPage> pages, Map<String, String> uncommitted) throws IOException {
+    try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+      VirtualFile root = WebPage.ROOT.dir;
+      if (in.readInt() != FORMAT_VERSION || !root.getRealFile().getPath().equals(in.readUTF())) return null;
+
+      String commit = in.readUTF();
+      for (int files = in.readInt(); files > 0; files--) {
+        uncommitted.put(in.readUTF(), in.readUTF());
+      }
+      int count = in.readInt();
+      for (int i = 0; i < count; i++) {
+        String path = in.readUTF();
+        boolean news = in.readBoolean();
+        long lastModified = in.readLong();
+        Properties metadata = new Properties();
+        for (int keys = in.readShort(); keys > 0; keys--) {
+          metadata.setProperty(in.readUTF(), in.readUTF());
+        }
+
+        VirtualFile dir = root.child(path.substring(1, path.length() - 1));
+        WebPage page = news ? new WebPage.News(dir, path, metadata) : new WebPage(dir, path, metadata);
+        page.lastModified = lastModified;
+        pages.add(page);
+      }
+      return commit;
+    }
+  }
+
+  /** @return page directories affected by the given git changes: pages added, deleted or with changed metadata */
+  public static Set<String> changedDirs(Map<String, String> changedFiles) {
+    Set<String> dirs = new HashSet<>();
+    for (Map.Entry<String, String> change : changedFiles.entrySet()) {
+      String dir = getPath(change.getKey());
+      if (dir.isEmpty()) continue; // files in the root can't affect pages
+      if (!"M".equals(change.getValue()) || change.getKey().endsWith("metadata.properties"))
+        dirs.add("/" + dir);
+    }
+    return dirs;
+  }
+
+  /** @return uncommitted files with statuses like in changedFiles, or null if there are too many to list */
+  static Map<String, String> uncommittedFiles() throws IOException, InterruptedException, Git.ExecException {
+    GitRecords<Git.FileStatus> statuses = Git.status();
+    if (statuses.truncated) return null;
+    Map<String, String> files = new LinkedHashMap<>();
+    for (Git.FileStatus status : statuses) {
+      files.put(status.path, status.code.replace("M", "").isEmpty() ? "M" : status.code);
+      if (status.origPath != null) files.put(status.origPath, "D");
+    }
+    return files;
+  }
+
+  /** Modified files don't need rescanning unless they are metadata, but added or deleted ones do */
+  private static String moreSignificant(String status, String another) {
+    return "M".equals(status) ? another : status;
+  }
+
+  private static File file() {
+    return Play.tmpDir == null ? null : new File(Play.tmpDir, "web-tree.bin");
+  }
+
+  private static String head() {
+    if (!WebPage.ROOT.dir.child(".git").exists()) return null;
+    try {
+      return Git.head();
+    }
+    catch (IOException | InterruptedException | Git.ExecException e) {
+      logger.warn("Cannot get content commit: " + e);
+      return null;
+    }
+  }
+}
@@ -0,0 +1,115 @@
+package plugins;
+
+import com.google.common.collect.ImmutableMap;
+import play.mvc.Router;
+
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+
+import static plugins.WebContentPlugin.*;
+
+/**
+ * Single route for all content: top-level pages, news sections and aliases are kept in a trie of path segments,
+ * so resolving a path takes time proportional to its depth instead of matching a regex per page.
+ * The trie is immutable and is replaced as a whole when pages change.
+ */
+class ContentRoute extends Router.Route {
+  private static final Node EMPTY = new Node(false, null, null, ImmutableMap.of());
+
+  private volatile Node root = EMPTY;
+
+  ContentRoute() {
+    method = "GET";
+    path = "/{<.*>webPath}";
+    action = "Web.{webAction}";
+    compute();
+  }
+
+  /**
+   * @param contentPaths pages served with all their subpages by Web.serveContent
+   * @param newsPaths pages served with all their subpages by Web.news, take precedence over content
+   * @param aliases alias paths of pages, used only if no content or news page matches
+   */
+  void update(Collection<String> contentPaths, Collection<String> newsPaths, Map<String, String> aliases) {
+    Builder root = new Builder();
+    for (String path : contentPaths) root.child(path).content = true;
+    for (String path : newsPaths) root.child(path).news = path;
+    for (Map.Entry<String, String> alias : aliases.entrySet()) root.child(alias.getKey()).alias = alias.getValue();
+    this.root = root.build();
+  }
+
+  /** @return route arguments in the same form as Router.route returns them or empty map if the path is not content */
+  Map<String, String> resolve(String path) {
+    Node node = root;
+    boolean content = false;
+    String news = null;
+    int start = 0, length = path.length();
+    while (node != null) {
+      if (node.content) content = true;
+      if (node.news != null && path.startsWith(node.news)) news = node.news;
+
+      while (start < length && path.charAt(start) == '/') start++;
+      if (start == length) break;
+      int end = path.indexOf('/', start);
+      if (end < 0) end = length;
+      node = node.children.get(path.substring(start, end));
+      start = end;
+    }
+
+    Map<String, String> args = new HashMap<>();
+    if (news != null)
+      args.put("action", "Web." + WEB_NEWS_METHOD);
+    else if (content)
+      args.put("action", "Web." + (cacheEnabled() && node != null && node.content && path.endsWith("/") ? WEB_CACHED_CONTENT_METHOD : WEB_CONTENT_METHOD));
+    else if (node != null && node.alias != null) {
+      args.put("action", "Web." + WEB_REDIRECT_ALIAS_METHOD);
+      args.put("path", node.alias);
+    }
+    return args;
+  }
+
+  @Override public Map<String, String> matches(String method, String path, String accept, String domain) {
+    if (method != null && !"GET".equalsIgnoreCase(method) && !"HEAD".equalsIgnoreCase(method)) return null;
+    Map<String, String> args = resolve(path);
+    if (args.isEmpty()) return null;
+    args.put("webAction", args.remove("action").substring("Web.".length()));
+    args.put("webPath", path);
+    return args;
+  }
+
+  private static final class Node {
+    final boolean content;
+    final String news;
+    final String alias;
+    final Map<String, Node> children;
+
+    Node(boolean content, String news, String alias, Map<String, Node> children) {
+      this.content = content;
+      this.news = news;
+      this.alias = alias;
+      this.children = children;
+    }
+  }
+
+  private static final class Builder {
+    boolean content;
+    String news;
+    String alias;
+    final Map<String, Builder> children = new HashMap<>();
+
+    Builder child(String path) {
+      Builder node = this;
+      for (String segment : path.split("/")) {
+        if (!segment.isEmpty()) node = node.children.computeIfAbsent(segment, s -> new Builder());
+      }
+      return node;
+    }
+
+    Node build() {
+      ImmutableMap.Builder<String, Node> nodes = ImmutableMap.builder();
+      for (Map.Entry<String, Builder> child : children.entrySet()) nodes.put(child.getKey(), child.getValue().build());
+      return new Node(content, news, alias, nodes.build());
+    }
+  }
+}
@@ -1,22 +1,32 @@
 package plugins;
 
 import models.WebPage;
+import models.WebPageTree;
+import models.WebPageTreeStore;
+import org.apache.commons.io.FilenameUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import play.Play;
 import play.PlayPlugin;
-import play.cache.CacheFor;
 import play.db.jpa.JPA;
 import play.i18n.Lang;
 import play.mvc.Http;
 import play.mvc.Router;
 import play.mvc.Scope;
-
+import util.ContentPartCache;
+import util.ContentWatcher;
+import util.Git;
+import util.LastCommits;
+import util.LazyTransaction;
+import util.RenderCache;
+import util.WebPageIndexer;
+
+import java.io.File;
+import java.io.IOException;
 import java.lang.reflect.Method;
-import java.util.List;
+import java.util.*;
 
 import static org.apache.commons.lang.StringUtils.isNotEmpty;
-import static org.apache.commons.lang.StringUtils.substring;
 
 public class WebContentPlugin extends PlayPlugin {
   private static final Logger logger = LoggerFactory.getLogger(WebContentPlugin.class);
@@ -26,38 +36,80 @@ public class WebContentPlugin extends PlayPlugin {
   public static final String WEB_NEWS_METHOD = "news";
   public static final String WEB_REDIRECT_ALIAS_METHOD = "redirectAlias";
 
+  private static final ContentRoute contentRoute = new ContentRoute();
+
+  private ContentWatcher watcher;
   private long lastModified;
-  private int genericRouteIndex;
+  private final Git.PullListener pullListener = new Git.PullListener() {
+    @Override public void created(String path) {}
+
+    @Override public void pulled(Git.ChangeSet changeSet) {
+      WebContentPlugin.this.pulled(changeSet);
+    }
+  };
 
   public static boolean cacheEnabled() {
     return "true".equals(Play.configuration.getProperty("web.cacheEnabled", String.valueOf(Play.mode.isProd())));
   }
 
+  /** @return route arguments of a content path like Router.route("GET", path) returns, but without trying every route */
+  public static Map<String, String> route(String path) {
+    Map<String, String> args = contentRoute.resolve(path);
+    return args.isEmpty() ? Router.route("GET", path) : args;
+  }
+
   @Override public void onApplicationStart() {
-    genericRouteIndex = Router.routes.size();
+    WebPageTreeStore.restoreOrScan();
+    updateRoutes();
+    WebPageTreeStore.save();
+    LastCommits.buildInBackground();
+    Git.addPullListener(pullListener);
+    try {
+      watcher = ContentWatcher.start(WebPage.ROOT.dir.getRealFile(), Play.configuration, this::contentChanged);
+    }
+    catch (IOException e) {
+      logger.error("Cannot watch " + WebPage.ROOT.dir + ", changes will be picked up only after reload", e);
+    }
+  }
+
+  @Override public void onApplicationStop() {
+    Git.removePullListener(pullListener);
+    if (watcher != null) watcher.close();
+    watcher = null;
+    Git.close();
+    WebPageTreeStore.save();
+  }
+
+  @Override public void onRoutesLoaded() {
+    Router.routes.remove(contentRoute);
+    int genericRouteIndex = Router.routes.size();
     for (int i = 0; i < Router.routes.size(); i++) {
-      Router.Route route = Router.routes.get(i);
-      if (route.action.startsWith("{controller}")) {
+      if (Router.routes.get(i).action.startsWith("{controller}")) {
         genericRouteIndex = i; break;
       }
     }
+    Router.routes.add(genericRouteIndex, contentRoute);
+  }
+
+  private void updateRoutes() {
+    updateRoutes(WebPage.ROOT.children(), WebPage.all());
+    lastModified = WebPage.ROOT.dir.lastModified();
+  }
 
-    addWebRoutes(WebPage.ROOT.children());
+  void updateRoutes(List<WebPage> topPages, List<WebPage> pages) {
+    List<String> contentPaths = new ArrayList<>();
+    for (WebPage page : topPages) contentPaths.add(page.path);
 
-    for (WebPage page : WebPage.all()) {
+    List<String> newsPrefixes = new ArrayList<>();
+    Map<String, String> aliases = new HashMap<>();
+    for (WebPage page : pages) {
       String alias = page.metadata.getProperty("alias");
-      if (isNotEmpty(alias)) {
-        if (!alias.startsWith("/")) alias = "/" + alias;
-        Router.appendRoute("GET", alias + "/?", "Web." + WEB_REDIRECT_ALIAS_METHOD, "{path:'" + page.path + "'}", null, null, 0);
-      }
-
-      if ("news".equals(page.metadata.getProperty("template"))) {
-        WebPage.News.pathPrefixes.add(page.path.replaceFirst("/$", ""));
-        Router.addRoute(genericRouteIndex, "GET", page.path + ".*", "Web." + WEB_NEWS_METHOD, null);
-      }
+      if (isNotEmpty(alias)) aliases.put(alias, page.path);
+      if ("news".equals(page.metadata.getProperty("template"))) newsPrefixes.add(page.path);
     }
 
-    lastModified = WebPage.ROOT.dir.lastModified();
+    contentRoute.update(contentPaths, newsPrefixes, aliases);
+    WebPage.News.setPathPrefixes(newsPrefixes);
   }
 
   @Override public void afterApplicationStart() {
@@ -67,37 +119,91 @@ public class WebContentPlugin extends PlayPlugin {
     checkWebMethod(WEB_REDIRECT_ALIAS_METHOD, String.class);
   }
 
-  @Override public void detectChange() {
-    if (WebPage.ROOT.dir.lastModified() > lastModified) {
-      logger.info(WebPage.ROOT.dir + " change detected, reloading web routes");
-      onApplicationStart();
+  /**
+   * Rescans only pages whose dirs or metadata have changed, routes are rebuilt from the page tree only in that case.
+   * Content parts of changed pages are reprocessed and the pages are rendered again.
+   */
+  void contentChanged(Set<String> paths) {
+    LastCommits.refreshUncommittedInBackground();
+    if (paths.contains("/")) {
+      WebPageTree.reload();
+      ContentPartCache.invalidateAll();
+      updateRoutes();
+      return;
+    }
+
+    WebPageTree tree = WebPageTree.current();
+    Set<String> changedPages = new HashSet<>(), changedParts = new HashSet<>();
+    for (String path : paths) {
+      File file = new File(WebPage.ROOT.dir.getRealFile(), path);
+      boolean pageDir = file.isDirectory() || !file.exists() && tree != null && tree.get(path) != null;
+      String pagePath = pageDir ? path : FilenameUtils.getFullPathNoEndSeparator(path);
+      if (pageDir || "metadata.properties".equals(file.getName())) changedPages.add(pagePath);
+      changedParts.add(pagePath.endsWith("/") ? pagePath : pagePath + "/");
+    }
+    for (String pagePath : changedParts) ContentPartCache.invalidate(pagePath);
+    RenderCache.invalidate(changedParts);
+
+    if (!changedPages.isEmpty()) {
+      WebPageTree.refresh(changedPages);
+      updateRoutes();
     }
   }
 
-  private static boolean shouldStartTx() {
-    return "always".equals(Play.configuration.getProperty("web.tx", "logged-in")) || isLoggedIn();
+  /**
+   * Pulled changes are applied from the change set, as the watcher may be off, e.g. with web.watch=false in prod.
+   * Routes are rebuilt only if pages were added, removed or their metadata has changed.
+   */
+  void pulled(Git.ChangeSet changeSet) {
+    LastCommits.updateInBackground(changeSet.fromCommit, changeSet.toCommit);
+    for (String pagePath : changeSet.pagePaths()) ContentPartCache.invalidate(pagePath);
+    RenderCache.invalidate(changeSet.pagePaths());
+    Set<String> changedPages = WebPageTreeStore.changedDirs(changeSet.statuses());
+    if (!changedPages.isEmpty()) {
+      WebPageTree.refresh(changedPages);
+      updateRoutes();
+    }
+    WebPageIndexer.getInstance().indexChangesInBackground();
   }
 
-  private static boolean isLoggedIn() {
-    return Scope.Session.current().contains("username");
+  @Override public void detectChange() {
+    if (watcher == null && WebPage.ROOT.dir.lastModified() > lastModified) {
+      logger.info(WebPage.ROOT.dir + " change detected, reloading web routes");
+      WebPageTree.reload();
+      updateRoutes();
+    }
   }
 
   @Override public void beforeActionInvocation(Method actionMethod) {
     if (actionMethod.isAnnotationPresent(SetLangByURL.class))
       setLangByURL();
-    if (cacheEnabled() && actionMethod.isAnnotationPresent(CacheFor.class))
+    if (cacheEnabled() && WEB_CACHED_CONTENT_METHOD.equals(actionMethod.getName()))
       Http.Response.current().cacheFor("12h");
     Scope.RenderArgs.current().put("rootPage", WebPage.rootForLocale());
 
-    if ("controllers.Web".equals(actionMethod.getDeclaringClass().getName()) && shouldStartTx()) {
-      JPA.startTx(JPA.DEFAULT, true);
+    if ("controllers.Web".equals(actionMethod.getDeclaringClass().getName()) && JPA.isEnabled()) {
+      LazyTransaction.bind(JPA.DEFAULT);
       Http.Request.current().args.put("webTxStarted", true);
     }
   }
 
   @Override public void afterActionInvocation() {
-    if (Http.Request.current().args.get("webTxStarted") != null)
-      JPA.closeTx(JPA.DEFAULT);
+    closeWebTransaction();
+  }
+
+  /** Play skips afterActionInvocation() if the action fails */
+  @Override public void onInvocationException(Throwable e) {
+    closeWebTransaction();
+  }
+
+  @Override public void invocationFinally() {
+    closeWebTransaction();
+  }
+
+  private static void closeWebTransaction() {
+    Http.Request request = Http.Request.current();
+    if (request != null && request.args.remove("webTxStarted") != null)
+      LazyTransaction.close(JPA.DEFAULT);
   }
 
   private void setLangByURL() {
@@ -111,16 +217,6 @@ public class WebContentPlugin extends PlayPlugin {
     }
   }
 
-  void addWebRoutes(List<WebPage> pages) {
-    for (WebPage page : pages) {
-      String path = page.path;
-      if (path.endsWith("/")) path = substring(path, 0, -1);
-      Router.addRoute(genericRouteIndex, "GET", path + "/?.*", "Web." + WEB_CONTENT_METHOD, null);
-      if (cacheEnabled())  // cache top-level pages on production
-        Router.addRoute(genericRouteIndex, "GET", path + "/", "Web." + WEB_CACHED_CONTENT_METHOD, null);
-    }
-  }
-
   private static void checkWebMethod(String methodName, Class... argTypes) {
     try {
       Play.classloader.loadClass("controllers.Web").getMethod(methodName, argTypes);
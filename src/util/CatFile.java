@@ -0,0 +1,178 @@
+package util;
+
+import models.WebPage;
+import org.apache.commons.io.IOUtils;
+import play.Play;
+
+import java.io.*;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+
+import static java.lang.Integer.parseInt;
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+/**
+ * Long-lived git cat-file processes, so that reading a file of some revision doesn't fork git every time.
+ * A process answers one request at a time, so up to web.git.catFileProcesses (default 2) of them are kept per mode.
+ */
+class CatFile implements Closeable {
+  private static final int POOL_SIZE = parseInt(Play.configuration.getProperty("web.git.catFileProcesses", "2"));
+  static final Pool contents = new Pool("--batch");
+  static final Pool sizes = new Pool("--batch-check");
+
+  private final Process process;
+  private final OutputStream requests;
+  private final InputStream responses;
+
+  CatFile(String mode) throws IOException {
+    process = new ProcessBuilder("git", "cat-file", mode).directory(WebPage.ROOT.dir.getRealFile()).start();
+    requests = new BufferedOutputStream(process.getOutputStream());
+    responses = new BufferedInputStream(process.getInputStream());
+  }
+
+  /** @return object header: id, type and size, or null if there is no such object */
+  String[] request(String object) throws IOException {
+    if (object.indexOf('\n') >= 0) throw new IllegalArgumentException("Invalid object name: " + object);
+    requests.write((object + "\n").getBytes(UTF_8));
+    requests.flush();
+    String[] header = readLine().split(" ");
+    return header.length == 3 ? header : null; // "<object> missing" or "<object> ambiguous"
+  }
+
+  byte[] readContent(long size) throws IOException {
+    if (size > Integer.MAX_VALUE - 8) throw new IOException("Object too large: " + size);
+    byte[] content = new byte[(int) size];
+    IOUtils.readFully(new Content(size), content);
+    return content;
+  }
+
+  /** Object content of a response, the process can answer the next request only after it has been read to the end */
+  class Content extends InputStream {
+    private long left;
+
+    Content(long size) throws IOException {
+      left = size;
+      if (left == 0) readEnd();
+    }
+
+    @Override public int read() throws IOException {
+      byte[] b = new byte[1];
+      return read(b, 0, 1) < 0 ? -1 : b[0] & 0xFF;
+    }
+
+    @Override public int read(byte[] b, int off, int len) throws IOException {
+      if (left == 0) return -1;
+      int n = responses.read(b, off, (int) Math.min(len, left));
+      if (n < 0) throw new EOFException("git cat-file exited");
+      left -= n;
+      if (left == 0) readEnd();
+      return n;
+    }
+
+    private void readEnd() throws IOException {
+      if (responses.read() != '\n') throw new IOException("Unexpected git cat-file output");
+    }
+
+    boolean isRead() {
+      return left == 0;
+    }
+  }
+
+  private String readLine() throws IOException {
+    ByteArrayOutputStream line = new ByteArrayOutputStream(64);
+    for (int b = responses.read(); b != '\n'; b = responses.read()) {
+      if (b < 0) throw new EOFException("git cat-file exited");
+      line.write(b);
+    }
+    return new String(line.toByteArray(), UTF_8);
+  }
+
+  boolean isAlive() {
+    return process.isAlive();
+  }
+
+  @Override public void close() {
+    try {
+      requests.close();
+    }
+    catch (IOException ignore) {}
+    Git.reap(process);
+  }
+
+  interface Request<T> {
+    T apply(CatFile catFile) throws IOException;
+  }
+
+  static final class Pool {
+    private final String mode;
+    private final BlockingQueue<CatFile> idle = new LinkedBlockingQueue<>();
+    private final Semaphore permits = new Semaphore(POOL_SIZE);
+
+    Pool(String mode) {
+      this.mode = mode;
+    }
+
+    /** Processes that failed in the middle of a response are closed rather than returned to the pool */
+    <T> T use(Request<T> request) throws IOException, InterruptedException {
+      CatFile catFile = take();
+      boolean answered = false;
+      try {
+        T result = request.apply(catFile);
+        answered = true;
+        return result;
+      }
+      finally {
+        release(catFile, answered);
+      }
+    }
+
+    /**
+     * @return content of the object or null if there is no such object. The process is held until the stream is closed,
+     *         possibly by another thread, and is returned to the pool only if the content was read to the end.
+     */
+    Git.Blob open(String object) throws IOException, InterruptedException {
+      CatFile catFile = take();
+      Git.Blob blob = null;
+      boolean answered = false;
+      try {
+        String[] header = catFile.request(object);
+        answered = header == null;
+        if (header == null) return null;
+        long size = Long.parseLong(header[2]);
+        Content content = catFile.new Content(size);
+        blob = new Git.Blob(content, size, () -> release(catFile, content.isRead()));
+        return blob;
+      }
+      finally {
+        if (blob == null) release(catFile, answered);
+      }
+    }
+
+    private CatFile take() throws IOException, InterruptedException {
+      permits.acquire();
+      try {
+        CatFile catFile = idle.poll();
+        if (catFile != null && !catFile.isAlive()) {
+          catFile.close();
+          catFile = null;
+        }
+        return catFile != null ? catFile : new CatFile(mode);
+      }
+      catch (IOException | RuntimeException e) {
+        permits.release();
+        throw e;
+      }
+    }
+
+    private void release(CatFile catFile, boolean reusable) {
+      if (reusable) idle.add(catFile);
+      else catFile.close();
+      permits.release();
+    }
+
+    void close() {
+      for (CatFile catFile = idle.poll(); catFile != null; catFile = idle.poll()) catFile.close();
+    }
+  }
+}
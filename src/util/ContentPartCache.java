@@ -0,0 +1,103 @@
+package util;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheStats;
+import play.Play;
+import play.vfs.VirtualFile;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Objects;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+
+import static java.lang.Long.parseLong;
+
+/**
+ * Processed html content parts of web pages, validated by modification time and size of the source file.
+ */
+public class ContentPartCache {
+  private static final Cache<Key, String> parts = CacheBuilder.newBuilder()
+      .maximumWeight(parseLong(Play.configuration.getProperty("web.contentCache.maxBytes", String.valueOf(64 * 1024 * 1024))))
+      .weigher((Key key, String part) -> 2 * (key.file.length() + key.pagePath.length() + part.length()) + 64)
+      .recordStats()
+      .build();
+
+  /**
+   * @param pagePath path of the page the part is processed for, as links in the part are made relative to it
+   * @param linked whether the part is rewritten to be shown on another page, see contentFrom
+   */
+  public static String get(String pagePath, VirtualFile file, boolean linked, Callable<String> loader) {
+    BasicFileAttributes attributes;
+    try {
+      attributes = Files.readAttributes(file.getRealFile().toPath(), BasicFileAttributes.class);
+    }
+    catch (IOException e) {
+      return call(loader);
+    }
+
+    Key key = new Key(pagePath, file.getRealFile().getPath(), attributes.lastModifiedTime().toMillis(), attributes.size(), linked);
+    try {
+      return parts.get(key, loader);
+    }
+    catch (ExecutionException e) {
+      throw new RuntimeException(e.getCause());
+    }
+  }
+
+  /** Parts contain sizes of downloadable files, so they need to be reprocessed when files of the page change */
+  public static void invalidate(String pagePath) {
+    parts.asMap().keySet().removeIf(key -> key.pagePath.equals(pagePath));
+  }
+
+  public static void invalidateAll() {
+    parts.invalidateAll();
+  }
+
+  /** @return hit, miss and eviction counters */
+  public static CacheStats stats() {
+    return parts.stats();
+  }
+
+  public static long size() {
+    return parts.size();
+  }
+
+  private static String call(Callable<String> loader) {
+    try {
+      return loader.call();
+    }
+    catch (Exception e) {
+      throw new RuntimeException(e);
+    }
+  }
+
+  private static final class Key {
+    final String pagePath;
+    final String file;
+    final long lastModified;
+    final long size;
+    final boolean linked;
+
+    Key(String pagePath, String file, long lastModified, long size, boolean linked) {
+      this.pagePath = pagePath;
+      this.file = file;
+      this.lastModified = lastModified;
+      this.size = size;
+      this.linked = linked;
+    }
+
+    @Override public boolean equals(Object o) {
+      if (!(o instanceof Key)) return false;
+      Key that = (Key) o;
+      return lastModified == that.lastModified && size == that.size && linked == that.linked &&
+          pagePath.equals(that.pagePath) && file.equals(that.file);
+    }
+
+    @Override public int hashCode() {
+      return Objects.hash(pagePath, file, lastModified, size, linked);
+    }
+  }
+}
@@ -0,0 +1,229 @@
+package util;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.*;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.*;
+import java.util.function.Consumer;
+
+import static java.nio.file.StandardWatchEventKinds.*;
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+
+/**
+ * Watches the content dir with all its subdirs and reports changed paths (relative to the content dir, starting with /)
+ * after no more changes have happened during the debounce time, so that saving or pulling many files produces a single batch.
+ * Falls back to comparing modification times periodically if file system events are not available, e.g. on NFS.
+ * Hidden files and dirs (like .git) are ignored. Path / is reported if changes were lost and everything must be rescanned.
+ */
+public class ContentWatcher implements Closeable {
+  private static final Logger logger = LoggerFactory.getLogger(ContentWatcher.class);
+  private static volatile ContentWatcher current;
+
+  private final Path root;
+  private final Consumer<Set<String>> listener;
+  private final long debounceMillis;
+  private final long pollMillis;
+  private final WatchService watchService;
+  private final Map<WatchKey, Path> watchedDirs = new HashMap<>();
+  private Map<Path, Long> pollSnapshot;
+  private final Set<String> pending = new TreeSet<>();
+  private final Thread thread;
+  private volatile boolean running = true;
+
+  ContentWatcher(File root, boolean poll, long debounceMillis, long pollMillis, Consumer<Set<String>> listener) throws IOException {
+    this.root = root.toPath().toAbsolutePath().normalize();
+    this.listener = listener;
+    this.debounceMillis = debounceMillis;
+    this.pollMillis = pollMillis;
+    this.watchService = poll ? null : newWatchService();
+    if (watchService != null) registerRecursively(this.root);
+    else pollSnapshot = scan();
+
+    thread = new Thread(this::run, "content-watcher");
+    thread.setDaemon(true);
+    thread.start();
+  }
+
+  /**
+   * Configured with web.watch (true, false or poll, default true), web.watch.debounce (default 300 ms)
+   * and web.watch.pollInterval (default 1000 ms).
+   * @return started watcher or null if watching is disabled
+   */
+  public static synchronized ContentWatcher start(File root, Properties configuration, Consumer<Set<String>> listener) throws IOException {
+    String mode = configuration.getProperty("web.watch", "true");
+    if ("false".equals(mode)) return null;
+    if (current != null) current.close();
+    current = new ContentWatcher(root, "poll".equals(mode),
+        Long.parseLong(configuration.getProperty("web.watch.debounce", "300")),
+        Long.parseLong(configuration.getProperty("web.watch.pollInterval", "1000")), listener);
+    logger.info("Watching " + root + (current.watchService == null ? " by polling" : ""));
+    return current;
+  }
+
+  /** @return whether changes of content files are picked up without explicit reloading */
+  public static boolean isWatching() {
+    return current != null;
+  }
+
+  @Override public void close() {
+    running = false;
+    thread.interrupt();
+    try {
+      if (watchService != null) watchService.close();
+    }
+    catch (IOException e) {
+      logger.warn("Cannot close watch service", e);
+    }
+    synchronized (ContentWatcher.class) {
+      if (current == this) current = null;
+    }
+  }
+
+  private static WatchService newWatchService() {
+    try {
+      return FileSystems.getDefault().newWatchService();
+    }
+    catch (IOException | UnsupportedOperationException e) {
+      logger.warn("File system events not available, polling for changes: " + e);
+      return null;
+    }
+  }
+
+  private void run() {
+    while (running) {
+      try {
+        long timeout = pending.isEmpty() ? pollMillis : debounceMillis;
+        boolean changed = watchService != null ? awaitEvents(timeout) : pollChanges(timeout);
+        if (!changed && !pending.isEmpty()) flush();
+      }
+      catch (InterruptedException | ClosedWatchServiceException e) {
+        return;
+      }
+      catch (Exception e) {
+        logger.error("Failed to process content changes", e);
+      }
+    }
+  }
+
+  private void flush() {
+    Set<String> paths = new TreeSet<>(pending);
+    pending.clear();
+    logger.debug("Content changed: " + paths);
+    listener.accept(paths);
+  }
+
+  private boolean awaitEvents(long timeout) throws InterruptedException, IOException {
+    WatchKey key = watchService.poll(timeout, MILLISECONDS);
+    if (key == null) return false;
+    for (; key != null; key = watchService.poll()) {
+      Path dir = watchedDirs.get(key);
+      for (WatchEvent<?> event : key.pollEvents()) {
+        if (event.kind() == OVERFLOW || dir == null) {
+          pending.add("/");
+          continue;
+        }
+        Path path = dir.resolve((Path) event.context());
+        if (isHidden(path)) continue;
+        if (event.kind() == ENTRY_CREATE && Files.isDirectory(path)) {
+          registerRecursively(path);
+          addRecursively(path);
+        }
+        else if (event.kind() != ENTRY_MODIFY || !Files.isDirectory(path)) {
+          pending.add(relative(path));
+        }
+      }
+      if (!key.reset()) watchedDirs.remove(key);
+    }
+    return true;
+  }
+
+  private boolean pollChanges(long timeout) throws InterruptedException, IOException {
+    Thread.sleep(timeout);
+    Map<Path, Long> snapshot = scan();
+    boolean changed = false;
+    for (Map.Entry<Path, Long> file : snapshot.entrySet()) {
+      Long previous = pollSnapshot.remove(file.getKey());
+      if (previous == null || previous >= 0 && !previous.equals(file.getValue())) {
+        pending.add(relative(file.getKey()));
+        changed = true;
+      }
+    }
+    for (Path deleted : pollSnapshot.keySet()) {
+      pending.add(relative(deleted));
+      changed = true;
+    }
+    pollSnapshot = snapshot;
+    return changed;
+  }
+
+  /** @return modification times of files, -1 for dirs as they change together with their files */
+  private Map<Path, Long> scan() throws IOException {
+    Map<Path, Long> files = new HashMap<>();
+    walk(root, new SimpleFileVisitor<Path>() {
+      @Override public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) {
+        if (!dir.equals(root)) files.put(dir, -1L);
+        return FileVisitResult.CONTINUE;
+      }
+
+      @Override public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) {
+        files.put(file, attrs.lastModifiedTime().toMillis() * 31 + attrs.size());
+        return FileVisitResult.CONTINUE;
+      }
+    });
+    return files;
+  }
+
+  private void registerRecursively(Path start) throws IOException {
+    walk(start, new SimpleFileVisitor<Path>() {
+      @Override public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) throws IOException {
+        watchedDirs.put(dir.register(watchService, ENTRY_CREATE, ENTRY_DELETE, ENTRY_MODIFY), dir);
+        return FileVisitResult.CONTINUE;
+      }
+    });
+  }
+
+  /** Files may be created in a new dir before it is registered, so everything in it is reported */
+  private void addRecursively(Path start) throws IOException {
+    walk(start, new SimpleFileVisitor<Path>() {
+      @Override public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) {
+        pending.add(relative(dir));
+        return FileVisitResult.CONTINUE;
+      }
+
+      @Override public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) {
+        pending.add(relative(file));
+        return FileVisitResult.CONTINUE;
+      }
+    });
+  }
+
+  private void walk(Path start, SimpleFileVisitor<Path> visitor) throws IOException {
+    Files.walkFileTree(start, new SimpleFileVisitor<Path>() {
+      @Override public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) throws IOException {
+        if (!dir.equals(root) && isHidden(dir)) return FileVisitResult.SKIP_SUBTREE;
+        return visitor.preVisitDirectory(dir, attrs);
+      }
+
+      @Override public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
+        return isHidden(file) ? FileVisitResult.CONTINUE : visitor.visitFile(file, attrs);
+      }
+
+      @Override public FileVisitResult visitFileFailed(Path file, IOException e) {
+        return FileVisitResult.CONTINUE; // deleted while walking
+      }
+    });
+  }
+
+  private static boolean isHidden(Path path) {
+    return path.getFileName().toString().startsWith(".");
+  }
+
+  private String relative(Path path) {
+    return "/" + root.relativize(path).toString().replace(File.separatorChar, '/');
+  }
+}
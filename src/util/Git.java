@@ -1,29 +1,241 @@
 package util;
 
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Iterables;
 import models.WebPage;
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.FilenameUtils;
 import org.apache.commons.io.IOUtils;
 import play.Play;
 
+import java.io.File;
+import java.io.FilterInputStream;
 import java.io.IOException;
 import java.io.InputStream;
-import java.util.List;
-import java.util.Scanner;
+import java.util.*;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 
+import static java.lang.Integer.parseInt;
+import static java.lang.Long.parseLong;
 import static java.nio.charset.StandardCharsets.UTF_8;
+import static java.util.Arrays.asList;
+import static java.util.Collections.singleton;
+import static java.util.concurrent.TimeUnit.SECONDS;
+import static org.apache.commons.lang.StringUtils.split;
 
 public class Git {
+  private static final Set<String> READ_ONLY_COMMANDS = ImmutableSet.of(
+      "log", "diff", "show", "status", "rev-parse", "rev-list", "cat-file", "ls-files", "ls-tree", "blame");
+  private static final ReadWriteLock lock = new ReentrantReadWriteLock();
+
+  /** set by the app to be notified after the content has been updated */
   public static PullListener pullListener;
+  private static final List<PullListener> listeners = new CopyOnWriteArrayList<>();
+
+  /** Consumers of pulled changes, like caches of the content, are notified before pullListener */
+  public static void addPullListener(PullListener listener) {
+    listeners.add(listener);
+  }
+
+  public static void removePullListener(PullListener listener) {
+    listeners.remove(listener);
+  }
+
+  /** Read-only commands run in parallel, others (like pull, commit, checkout or add) are exclusive */
+  public static String git(String ... cmdLine) throws IOException, InterruptedException, ExecException {
+    Lock commandLock = lockFor(cmdLine);
+    commandLock.lockInterruptibly();
+    try {
+      return exec(addExecutable(cmdLine));
+    }
+    finally {
+      commandLock.unlock();
+    }
+  }
+
+  public static String git(List<String> cmdLine) throws IOException, InterruptedException, ExecException {
+    return git(cmdLine.toArray(new String[cmdLine.size()]));
+  }
+
+  private static Lock lockFor(String ... cmdLine) {
+    return cmdLine.length > 0 && READ_ONLY_COMMANDS.contains(cmdLine[0]) ? lock.readLock() : lock.writeLock();
+  }
+
+  /**
+   * The command holds the same lock as git() until the returned stream is closed, when the process is reaped.
+   * The stream must be closed by the thread that opened it.
+   */
+  public static InputStream gitForStream(String ... cmdLine) throws IOException, InterruptedException {
+    Lock commandLock = lockFor(cmdLine);
+    commandLock.lockInterruptibly();
+    Process proc;
+    try {
+      proc = execProc(addExecutable(cmdLine));
+    }
+    catch (IOException e) {
+      commandLock.unlock();
+      throw e;
+    }
+    return new FilterInputStream(proc.getInputStream()) {
+      private boolean closed;
+
+      @Override public void close() throws IOException {
+        if (closed) return;
+        closed = true;
+        try {
+          super.close();
+        }
+        finally {
+          reap(proc);
+          commandLock.unlock();
+        }
+      }
+    };
+  }
+
+  /** @return contents of the file at the given revision or null if it doesn't exist there */
+  public static byte[] show(String revision, String path) throws IOException, InterruptedException {
+    return CatFile.contents.use(catFile -> {
+      String[] header = catFile.request(revision + ":" + path);
+      return header != null ? catFile.readContent(Long.parseLong(header[2])) : null;
+    });
+  }
+
+  /** @return contents of the file at the given revision or null if it doesn't exist there, streamed without loading it into memory */
+  public static Blob open(String revision, String path) throws IOException, InterruptedException {
+    return CatFile.contents.open(revision + ":" + path);
+  }
+
+  /** @return size of the file at the given revision or -1 if it doesn't exist there */
+  public static long size(String revision, String path) throws IOException, InterruptedException {
+    return CatFile.sizes.use(catFile -> {
+      String[] header = catFile.request(revision + ":" + path);
+      return header != null ? Long.parseLong(header[2]) : -1L;
+    });
+  }
+
+  /** Stops long-lived git processes, new ones are started on demand */
+  public static void close() {
+    CatFile.contents.close();
+    CatFile.sizes.close();
+  }
+
+  /** @return commits, newest first, the first args may limit them, e.g. --max-count=50, and then paths may follow */
+  public static GitRecords<Commit> log(String ... args) throws IOException, InterruptedException, ExecException {
+    List<String> cmdLine = new ArrayList<>(asList("log", "--pretty=format:%h%x1f%ct%x1f%an%x1f%ae%x1f%s%x1f%b%x1e"));
+    cmdLine.addAll(asList(args));
+    return stream('\u001e', Git::parseCommit, cmdLine);
+  }
 
-  public static synchronized String git(String ... cmdLine) throws IOException, InterruptedException, ExecException {
-    return exec(addExecutable(cmdLine));
+  /** @return uncommitted changes of the working tree */
+  public static GitRecords<FileStatus> status() throws IOException, InterruptedException, ExecException {
+    return stream('\0', Git::parseStatus, asList("status", "--porcelain", "-z"));
   }
 
-  public static synchronized String git(List<String> cmdLine) throws IOException, InterruptedException, ExecException {
-    return exec(addExecutable(cmdLine.toArray(new String[cmdLine.size()])));
+  /** @return changed files with their changes, args are passed to git diff as is */
+  public static GitRecords<FileDiff> diff(String ... args) throws IOException, InterruptedException, ExecException {
+    List<String> cmdLine = new ArrayList<>(asList("diff"));
+    cmdLine.addAll(asList(args));
+    return stream('\n', Git::parseDiff, cmdLine);
   }
 
-  public static synchronized InputStream gitForStream(String ... cmdLine) throws IOException {
-    return execProc(addExecutable(cmdLine)).getInputStream();
+  /**
+   * Output is limited by web.git.maxRecords (default 1000) and web.git.maxBytes (default 10 MB).
+   * Errors go to a file, so that git can't block on a full stderr pipe while stdout is read.
+   */
+  private static <T> GitRecords<T> stream(char delimiter, GitRecords.Parser<T> parser, List<String> cmdLine) throws IOException, InterruptedException, ExecException {
+    int maxRecords = parseInt(Play.configuration.getProperty("web.git.maxRecords", "1000"));
+    long maxBytes = parseLong(Play.configuration.getProperty("web.git.maxBytes", String.valueOf(10 * 1024 * 1024)));
+    return stream(delimiter, parser, cmdLine, maxRecords, maxBytes);
+  }
+
+  static <T> GitRecords<T> stream(char delimiter, GitRecords.Parser<T> parser, List<String> cmdLine, int maxRecords, long maxBytes) throws IOException, InterruptedException, ExecException {
+    File errors = File.createTempFile("git-", ".err");
+    try {
+      lock.readLock().lockInterruptibly();
+      try {
+        Process proc = new ProcessBuilder(addExecutable(cmdLine.toArray(new String[cmdLine.size()])))
+            .directory(WebPage.ROOT.dir.getRealFile()).redirectError(errors).start();
+        try (InputStream in = proc.getInputStream()) {
+          GitRecords<T> records = new GitRecords<>();
+          if (GitRecords.read(in, delimiter, maxRecords, maxBytes, records, parser)) {
+            int status = proc.waitFor();
+            if (status != 0) throw new ExecException(status, FileUtils.readFileToString(errors, UTF_8));
+          }
+          return records;
+        }
+        finally {
+          reap(proc);
+        }
+      }
+      finally {
+        lock.readLock().unlock();
+      }
+    }
+    finally {
+      errors.delete();
+    }
+  }
+
+  static void parseCommit(String record, GitRecords<Commit> commits) {
+    if (record.startsWith("\n")) record = record.substring(1);
+    if (record.isEmpty()) return;
+    String[] fields = record.split("\u001f", 6);
+    commits.add(new Commit(fields[0], new Date(parseLong(fields[1]) * 1000), fields[2], fields[3], fields[4], fields.length > 5 ? fields[5].trim() : ""));
+  }
+
+  static void parseStatus(String record, GitRecords<FileStatus> statuses) {
+    FileStatus last = statuses.isEmpty() ? null : statuses.get(statuses.size() - 1);
+    if (last != null && (last.code.startsWith("R") || last.code.startsWith("C")) && last.origPath == null)
+      last.origPath = record; // -z puts the original path of renamed and copied files after the new one
+    else if (record.length() >= 4)
+      statuses.add(new FileStatus(record.substring(0, 2).trim(), record.substring(3)));
+  }
+
+  static void parseDiff(String line, GitRecords<FileDiff> diffs) {
+    if (line.startsWith("diff --git ")) {
+      diffs.add(new FileDiff(line.replaceFirst(".*? b/", "")));
+      return;
+    }
+    if (diffs.isEmpty()) return;
+    FileDiff diff = diffs.get(diffs.size() - 1);
+    if (line.startsWith("@@")) diff.inHunks = true;
+    if (!diff.inHunks) {
+      if (line.startsWith("new file")) diff.newFile = true;
+      if (line.startsWith("index ") || line.startsWith("---") || line.startsWith("+++")) return;
+    }
+    if (diff.text.length() > 0) diff.text.append('\n');
+    diff.text.append(line);
+  }
+
+  public static String head() throws IOException, InterruptedException, ExecException {
+    return git("rev-parse", "HEAD").trim();
+  }
+
+  /** @return changes between the given commits with renames and copies detected */
+  public static ChangeSet changes(String fromCommit, String toCommit) throws IOException, InterruptedException, ExecException {
+    String[] diff = split(git("diff", "--name-status", "-M", "-z", fromCommit, toCommit), '\0');
+    List<Change> changes = new ArrayList<>();
+    for (int i = 0; i + 1 < diff.length; ) {
+      Change.Type type = Change.Type.of(diff[i++].charAt(0));
+      if ((type == Change.Type.RENAMED || type == Change.Type.COPIED) && i + 1 < diff.length) {
+        changes.add(new Change(type, diff[i + 1], diff[i]));
+        i += 2;
+      }
+      else changes.add(new Change(type, diff[i++], null));
+    }
+    return new ChangeSet(fromCommit, toCommit, changes);
+  }
+
+  /** @return paths of files changed between the given commits mapped to their status: A, M, D, T... */
+  public static Map<String, String> changedFiles(String fromCommit, String toCommit) throws IOException, InterruptedException, ExecException {
+    String[] diff = split(git("diff", "--name-status", "--no-renames", "-z", fromCommit, toCommit), '\0');
+    Map<String, String> changes = new LinkedHashMap<>();
+    for (int i = 0; i + 1 < diff.length; i += 2) changes.put(diff[i + 1], diff[i]);
+    return changes;
   }
 
   private static String[] addExecutable(String[] command) {
@@ -46,43 +258,91 @@ public class Git {
         throw new ExecException(status, out);
       return out;
     }
+    finally {
+      reap(proc);
+    }
   }
 
-  public static String safePull() throws InterruptedException, IOException, ExecException {
-    String mergeStrategy = "cms".equals(Play.id) ? "-Xours" : "--ff-only";
+  /** Makes sure the process has exited, killing it if it was abandoned before finishing */
+  static void reap(Process proc) {
+    try {
+      if (proc.isAlive()) proc.destroy();
+      if (!proc.waitFor(5, SECONDS)) proc.destroyForcibly().waitFor();
+    }
+    catch (InterruptedException e) {
+      proc.destroyForcibly();
+      Thread.currentThread().interrupt();
+    }
+  }
 
+  public static String safePull() throws InterruptedException, IOException, ExecException {
+    lock.writeLock().lockInterruptibly();
     try {
-      exec("find", "-name", ".DAV", "-exec", "rm", "-fr", "{}", ";");
+      return pull();
     }
-    catch (ExecException ignore) {}
+    finally {
+      lock.writeLock().unlock();
+    }
+  }
+
+  private static String pull() throws InterruptedException, IOException, ExecException {
+    String mergeStrategy = "cms".equals(Play.id) ? "-Xours" : "--ff-only";
 
+    String before = head();
     String pull = git("pull", mergeStrategy, "origin", "master");
-    if (pull.contains("Already up-to-date")) pull = "";
+    String after = head();
+    if (before.equals(after)) pull = "";
 
-    try {
-      exec("chmod", "-Rf", "g+w", ".");
+    if (!pull.isEmpty()) {
+      ChangeSet changeSet = changes(before, after);
+      fixPermissions(changeSet.statuses().keySet());
+      notifyListeners(changeSet);
     }
-    catch (ExecException ignore) {}
+    return pull;
+  }
 
-    try {
-      exec("chgrp", "-Rf", Play.configuration.getProperty("web.pull.group", "apache"), ".");
+  /**
+   * Pulled files and dirs must stay writable by the group of the web server, which also leaves .DAV lock dirs behind.
+   * Only changed files and their dirs are touched, as walking the whole content tree is slow.
+   */
+  static void fixPermissions(Collection<String> changedFiles) throws IOException, InterruptedException {
+    File root = WebPage.ROOT.dir.getRealFile();
+    Set<String> paths = new TreeSet<>(singleton("."));
+    for (String file : changedFiles) {
+      if (new File(root, file).exists()) paths.add(file);
+      for (String dir = parentDir(file); dir != null; dir = parentDir(dir)) paths.add(dir);
     }
-    catch (ExecException ignore) {}
 
-    notifyListener(pull);
-    return pull;
+    for (String path : paths) {
+      File dav = new File(new File(root, path), ".DAV");
+      if (dav.isDirectory()) FileUtils.deleteQuietly(dav);
+    }
+
+    String group = Play.configuration.getProperty("web.pull.group", "apache");
+    for (List<String> batch : Iterables.partition(paths, 500)) {
+      execIgnoringFailure(asList("chmod", "-f", "g+w", "--"), batch);
+      execIgnoringFailure(asList("chgrp", "-f", group, "--"), batch);
+    }
   }
 
-  private static void notifyListener(String pull) {
-    if (pullListener == null) return;
+  /** @return parent dir of the path or null for paths in the root */
+  private static String parentDir(String path) {
+    int slash = path.lastIndexOf('/');
+    return slash > 0 ? path.substring(0, slash) : null;
+  }
 
-    try (Scanner lines = new Scanner(pull)) {
-      while (lines.hasNextLine()) {
-        String line = lines.nextLine();
-        if (line.startsWith(" create mode "))
-          pullListener.created(line.substring(" create mode 100644 ".length()));
-      }
+  private static void execIgnoringFailure(List<String> command, List<String> paths) throws IOException, InterruptedException {
+    List<String> cmdLine = new ArrayList<>(command);
+    cmdLine.addAll(paths);
+    try {
+      exec(cmdLine.toArray(new String[cmdLine.size()]));
     }
+    catch (ExecException ignore) {}
+  }
+
+  private static void notifyListeners(ChangeSet changeSet) {
+    for (PullListener listener : listeners) listener.pulled(changeSet);
+    if (pullListener != null) pullListener.pulled(changeSet);
   }
 
   public static class ExecException extends Exception {
@@ -94,7 +354,143 @@ public class Git {
     }
   }
 
+  /** Contents of a file at some revision, the git process reading it is held until it is closed, possibly by another thread */
+  public static class Blob extends FilterInputStream {
+    public final long size;
+    private final Runnable onClose;
+    private boolean closed;
+
+    Blob(InputStream in, long size, Runnable onClose) {
+      super(in);
+      this.size = size;
+      this.onClose = onClose;
+    }
+
+    @Override public synchronized void close() {
+      if (closed) return;
+      closed = true;
+      onClose.run();
+    }
+  }
+
+  public static class Commit {
+    public final String hash;
+    public final Date date;
+    public final String author;
+    public final String email;
+    public final String subject;
+    public final String body;
+
+    Commit(String hash, Date date, String author, String email, String subject, String body) {
+      this.hash = hash;
+      this.date = date;
+      this.author = author;
+      this.email = email;
+      this.subject = subject;
+      this.body = body;
+    }
+  }
+
+  public static class FileStatus {
+    /** status letters of the index and the working tree, e.g. M, A, AD */
+    public final String code;
+    public final String path;
+    /** path before renaming or copying */
+    public String origPath;
+
+    FileStatus(String code, String path) {
+      this.code = code;
+      this.path = path;
+    }
+  }
+
+  public static class FileDiff {
+    public final String path;
+    public boolean newFile;
+    final StringBuilder text = new StringBuilder();
+    boolean inHunks;
+
+    FileDiff(String path) {
+      this.path = path;
+    }
+
+    /** @return changed lines together with headers like "new file mode", but without index and file names */
+    public String text() {
+      return text.toString();
+    }
+  }
+
+  public static class Change {
+    public enum Type {
+      ADDED, MODIFIED, DELETED, RENAMED, COPIED, TYPE_CHANGED;
+
+      static Type of(char status) {
+        switch (status) {
+          case 'A': return ADDED;
+          case 'D': return DELETED;
+          case 'R': return RENAMED;
+          case 'C': return COPIED;
+          case 'T': return TYPE_CHANGED;
+          default: return MODIFIED;
+        }
+      }
+    }
+
+    public final Type type;
+    public final String path;
+    /** path before renaming or copying, null for other changes */
+    public final String oldPath;
+
+    Change(Type type, String path, String oldPath) {
+      this.type = type;
+      this.path = path;
+      this.oldPath = oldPath;
+    }
+
+    @Override public String toString() {
+      return type + " " + (oldPath != null ? oldPath + " -> " : "") + path;
+    }
+  }
+
+  /** Files changed between two commits, paths are relative to the content dir */
+  public static class ChangeSet {
+    public final String fromCommit;
+    public final String toCommit;
+    public final List<Change> changes;
+
+    ChangeSet(String fromCommit, String toCommit, List<Change> changes) {
+      this.fromCommit = fromCommit;
+      this.toCommit = toCommit;
+      this.changes = changes;
+    }
+
+    /** @return changed paths mapped to A, M, D or T, renamed files are deleted from the old path and added to the new one */
+    public Map<String, String> statuses() {
+      Map<String, String> statuses = new LinkedHashMap<>();
+      for (Change change : changes) {
+        if (change.type == Change.Type.RENAMED) statuses.put(change.oldPath, "D");
+        statuses.put(change.path, change.type == Change.Type.RENAMED || change.type == Change.Type.COPIED ? "A" : change.type.name().substring(0, 1));
+      }
+      return statuses;
+    }
+
+    /** @return paths of pages which dirs contain changed files */
+    public Set<String> pagePaths() {
+      Set<String> paths = new TreeSet<>();
+      for (String path : statuses().keySet()) paths.add("/" + FilenameUtils.getPath(path));
+      return paths;
+    }
+  }
+
+  /** Notified after every pull that brought new commits, can be a lambda receiving created files */
   public interface PullListener {
     void created(String path);
+
+    /** Override to get all kinds of changes, by default only created files (added or copied) are passed to created() */
+    default void pulled(ChangeSet changeSet) {
+      for (Change change : changeSet.changes) {
+        if (change.type == Change.Type.ADDED || change.type == Change.Type.COPIED) created(change.path);
+      }
+    }
   }
 }
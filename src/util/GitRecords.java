@@ -0,0 +1,57 @@
+package util;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+/**
+ * Records parsed from output of a git command while it is produced. Reading stops after the given number of records
+ * or bytes, so that long histories or huge diffs don't have to be kept in memory and the first ones are shown fast.
+ */
+public class GitRecords<T> extends ArrayList<T> {
+  /** whether there was more output than the limits allowed */
+  public boolean truncated;
+
+  interface Parser<T> {
+    /** Adds parsed record to the records or updates the last one */
+    void parse(String record, GitRecords<T> records);
+  }
+
+  /** @return false if reading was stopped because of the limits */
+  static <T> boolean read(InputStream in, char delimiter, int maxRecords, long maxBytes, GitRecords<T> records, Parser<T> parser) throws IOException {
+    byte[] buffer = new byte[8192];
+    ByteArrayOutputStream record = new ByteArrayOutputStream();
+    long total = 0;
+    for (int n = in.read(buffer); n >= 0; n = in.read(buffer)) {
+      int start = 0;
+      for (int i = 0; i < n; i++) {
+        if (buffer[i] != delimiter) continue;
+        record.write(buffer, start, i - start);
+        start = i + 1;
+        if (!add(record, maxRecords, records, parser)) return false;
+      }
+      record.write(buffer, start, n - start);
+
+      total += n;
+      if (total > maxBytes) {
+        records.truncated = true;
+        return false;
+      }
+    }
+    return record.size() == 0 || add(record, maxRecords, records, parser);
+  }
+
+  private static <T> boolean add(ByteArrayOutputStream record, int maxRecords, GitRecords<T> records, Parser<T> parser) {
+    parser.parse(new String(record.toByteArray(), UTF_8), records);
+    record.reset();
+    if (records.size() > maxRecords) {
+      records.remove(records.size() - 1);
+      records.truncated = true;
+      return false;
+    }
+    return true;
+  }
+}
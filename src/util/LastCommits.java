@@ -0,0 +1,176 @@
+package util;
+
+import models.WebPage;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import static java.lang.Long.parseLong;
+import static java.util.Arrays.asList;
+import static org.apache.commons.io.FilenameUtils.getPath;
+
+/**
+ * Last commit of every content file and page dir, built by a single git log pass and updated after pulls,
+ * so that modification times are the same on all nodes and don't change when content is cloned again.
+ * Dirs with uncommitted changes (edited on this node) are considered modified when the change was noticed.
+ * The index is changed only by its own thread, as it is notified by threads holding the git lock.
+ */
+public class LastCommits {
+  private static final Logger logger = LoggerFactory.getLogger(LastCommits.class);
+  private static volatile LastCommits current;
+  private static final ExecutorService updater = Executors.newSingleThreadExecutor(runnable -> {
+    Thread thread = new Thread(runnable, "last-commits");
+    thread.setDaemon(true);
+    return thread;
+  });
+
+  final File root;
+  final String head;
+  /** by file path relative to the content dir */
+  private final Map<String, Commit> files;
+  /** by page path, e.g. /en/about/ */
+  private final Map<String, Commit> dirs;
+  private volatile Map<String, Long> uncommitted = new HashMap<>();
+
+  private LastCommits(File root, String head, Map<String, Commit> files, Map<String, Commit> dirs) {
+    this.root = root;
+    this.head = head;
+    this.files = files;
+    this.dirs = dirs;
+  }
+
+  public static class Commit {
+    public final String id;
+    /** commit time in milliseconds */
+    public final long time;
+
+    Commit(String id, long time) {
+      this.id = id;
+      this.time = time;
+    }
+  }
+
+  /** @return index of the current content dir or null if it was not built yet */
+  static LastCommits current() {
+    LastCommits index = current;
+    return index != null && index.root.equals(WebPage.ROOT.dir.getRealFile()) ? index : null;
+  }
+
+  /** @return last commit changing the file or null if it is not known */
+  public static Commit lastCommit(String file) {
+    LastCommits index = current();
+    return index == null ? null : index.files.get(file.startsWith("/") ? file.substring(1) : file);
+  }
+
+  /** @return whether commits up to the given one are already in the index */
+  public static boolean isIndexed(String commit) {
+    LastCommits index = current();
+    return index != null && index.head.equals(commit);
+  }
+
+  /** @return time of the last change of files directly in the page dir or 0 if it is not known */
+  public static long lastModified(String pagePath) {
+    LastCommits index = current();
+    if (index == null) return 0;
+    Long changed = index.uncommitted.get(pagePath);
+    if (changed != null) return changed;
+    Commit commit = index.dirs.get(pagePath);
+    return commit == null ? 0 : commit.time;
+  }
+
+  public static void buildInBackground() {
+    if (!WebPage.ROOT.dir.child(".git").exists()) return;
+    submit(LastCommits::build);
+  }
+
+  /** Adds commits made after the previous ones, e.g. by a pull, or rebuilds the index if it doesn't end with fromCommit */
+  public static void updateInBackground(String fromCommit, String toCommit) {
+    submit(() -> update(fromCommit, toCommit));
+  }
+
+  /** Looks up dirs with uncommitted changes, to be called when content files change */
+  public static void refreshUncommittedInBackground() {
+    submit(LastCommits::refreshUncommitted);
+  }
+
+  private interface Task {
+    void run() throws Exception;
+  }
+
+  private static void submit(Task task) {
+    updater.execute(() -> {
+      try {
+        task.run();
+      }
+      catch (Exception e) {
+        logger.error("Failed to update last commits", e);
+      }
+    });
+  }
+
+  static LastCommits build() throws IOException, InterruptedException, Git.ExecException {
+    long start = System.currentTimeMillis();
+    String head = Git.head();
+    LastCommits index = new LastCommits(WebPage.ROOT.dir.getRealFile(), head, new HashMap<>(), new HashMap<>());
+    index.add(head);
+    current = index;
+    refreshUncommitted();
+    logger.info("Indexed last commits of " + index.files.size() + " files in " + (System.currentTimeMillis() - start) + " ms");
+    return index;
+  }
+
+  static void update(String fromCommit, String toCommit) throws IOException, InterruptedException, Git.ExecException {
+    LastCommits index = current();
+    if (index == null) return;
+    if (!index.head.equals(fromCommit)) {
+      build();
+      return;
+    }
+
+    LastCommits updated = new LastCommits(index.root, toCommit, new HashMap<>(index.files), new HashMap<>(index.dirs));
+    updated.add(fromCommit + ".." + toCommit);
+    updated.uncommitted = index.uncommitted;
+    current = updated;
+    refreshUncommitted();
+  }
+
+  static void refreshUncommitted() throws IOException, InterruptedException, Git.ExecException {
+    LastCommits index = current();
+    if (index == null) return;
+
+    Map<String, Long> uncommitted = new HashMap<>();
+    long now = System.currentTimeMillis();
+    for (Git.FileStatus status : Git.status()) {
+      String dir = "/" + getPath(status.path);
+      uncommitted.put(dir, index.uncommitted.getOrDefault(dir, now));
+    }
+    index.uncommitted = uncommitted;
+  }
+
+  /**
+   * Newer commits come first in git log, so only the first commit of every path is taken.
+   * Nothing is added if git fails, so that the index is not published with missing commits.
+   */
+  private void add(String revisions) throws IOException, InterruptedException, Git.ExecException {
+    Map<String, Commit> seenFiles = new HashMap<>(), seenDirs = new HashMap<>();
+    Git.stream('\u001e', (record, records) -> {
+      String[] lines = record.split("\n");
+      if (lines[0].isEmpty()) return; // nothing precedes the first commit
+      String[] header = lines[0].split(" ");
+      Commit commit = new Commit(header[0], parseLong(header[1]) * 1000);
+      for (int i = 1; i < lines.length; i++) {
+        if (lines[i].isEmpty()) continue;
+        seenFiles.putIfAbsent(lines[i], commit);
+        seenDirs.putIfAbsent("/" + getPath(lines[i]), commit);
+      }
+    }, asList("-c", "core.quotepath=off", "log", "--name-only", "--no-renames", "--format=%x1e%H %ct", revisions, "--"), Integer.MAX_VALUE, Long.MAX_VALUE);
+    files.putAll(seenFiles);
+    dirs.putAll(seenDirs);
+  }
+}
@@ -0,0 +1,96 @@
+package util;
+
+import play.db.jpa.JPA;
+
+import javax.persistence.EntityManager;
+import javax.persistence.EntityTransaction;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+
+/**
+ * Read-only transaction bound to the current thread that checks out a DB connection only when JPA.em() is first used,
+ * as most content pages are rendered without touching the DB.
+ */
+public class LazyTransaction implements InvocationHandler {
+  /** what closing the transaction sees if JPA.em() was not used, so that no connection is checked out just to be closed */
+  private static final EntityTransaction NOT_STARTED = new EntityTransaction() {
+    @Override public void begin() {
+      throw new IllegalStateException("Read-only transaction is started by the first use of JPA.em()");
+    }
+
+    @Override public void commit() {
+      throw new IllegalStateException("Transaction is not active");
+    }
+
+    @Override public void rollback() {}
+
+    @Override public void setRollbackOnly() {}
+
+    @Override public boolean getRollbackOnly() {
+      return false;
+    }
+
+    @Override public boolean isActive() {
+      return false;
+    }
+  };
+
+  private final String dbName;
+  private EntityManager em;
+
+  private LazyTransaction(String dbName) {
+    this.dbName = dbName;
+  }
+
+  public static void bind(String dbName) {
+    JPA.JPAContext context = new JPA.JPAContext();
+    context.dbName = dbName;
+    context.readonly = true;
+    context.entityManager = (EntityManager) Proxy.newProxyInstance(EntityManager.class.getClassLoader(),
+        new Class[] {EntityManager.class}, new LazyTransaction(dbName));
+    JPA.currentEntityManager.get().put(dbName, context);
+  }
+
+  /** Closes the transaction if it was started, otherwise only unbinds it, so no connection is checked out */
+  public static void close(String dbName) {
+    JPA.JPAContext context = JPA.currentEntityManager.get().get(dbName);
+    if (context == null) return;
+    if (isStarted(context.entityManager)) JPA.closeTx(dbName);
+    else JPA.currentEntityManager.get().remove(dbName);
+  }
+
+  static boolean isStarted(EntityManager em) {
+    return !Proxy.isProxyClass(em.getClass()) || !(Proxy.getInvocationHandler(em) instanceof LazyTransaction)
+        || ((LazyTransaction) Proxy.getInvocationHandler(em)).em != null;
+  }
+
+  @Override public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+    if (method.getDeclaringClass() == Object.class) {
+      switch (method.getName()) {
+        case "equals": return proxy == args[0];
+        case "hashCode": return System.identityHashCode(proxy);
+        default: return "LazyTransaction[" + dbName + (em == null ? "" : ", started") + "]";
+      }
+    }
+
+    if (em == null) {
+      // JPAPlugin closes transactions of failed invocations before WebContentPlugin can unbind this one
+      switch (method.getName()) {
+        case "getTransaction": return NOT_STARTED;
+        case "isOpen": return true;
+        case "close": return null;
+      }
+      JPA.currentEntityManager.get().remove(dbName);
+      JPA.startTx(dbName, true);
+      em = JPA.em(dbName);
+    }
+    try {
+      return method.invoke(em, args);
+    }
+    catch (InvocationTargetException e) {
+      throw e.getCause();
+    }
+  }
+}
@@ -0,0 +1,182 @@
+package util;
+
+import java.util.Arrays;
+
+/**
+ * Finds html links exactly like <code>Matcher.find()</code> with regex
+ * <code>&lt;a([^&gt;]*?)href="([^"]+?)"([^&gt;]*?)&gt;(\s*[^&lt;].+?[^&gt;]\s*)&lt;/a&gt;</code> and DOTALL would,
+ * but in one forward pass: positions of closing tags are collected once instead of backtracking over the rest of the text
+ * for every unclosed link. Whether a link can start at some href doesn't depend on the preceding <code>&lt;a</code>,
+ * so every href is tried only once, even if many <code>&lt;a</code> share the same tag end.
+ */
+public class LinkScanner {
+  private static final String HREF = "href=\"";
+  private static final String CLOSING_TAG = "</a>";
+
+  private final String content;
+  private final int length;
+  private int from;
+
+  private int start, hrefStart, hrefEnd, tagEnd, textEnd;
+
+  private int[] closingTags;
+  private int closingTagCount;
+  private final NextGt tagLimits = new NextGt(), tagEnds = new NextGt();
+  /** hrefs before this position were already tried and can't start a link */
+  private int hrefsTriedUpTo;
+  private boolean noMoreLinks;
+  private int lastTextStart = -1, lastTextEnd;
+  /** chars examined so far, which must stay proportional to the length of the content */
+  long steps;
+
+  public LinkScanner(String content) {
+    this.content = content;
+    this.length = content.length();
+  }
+
+  public boolean find() {
+    while (from < length && !noMoreLinks) {
+      int p = scanned(from, content.indexOf("<a", from));
+      if (p < 0) break;
+      int tagLimit = tagLimits.from(p + 2);
+      if (tagLimit < 0) break;
+      if (matchAt(p, tagLimit)) {
+        from = end();
+        return true;
+      }
+      from = p + 1;
+    }
+    from = length;
+    return false;
+  }
+
+  public int start() {
+    return start;
+  }
+
+  public int end() {
+    return textEnd + CLOSING_TAG.length();
+  }
+
+  /** @return the same groups as the regex: 1 - attributes before href, 2 - href, 3 - attributes after href, 4 - link text */
+  public String group(int group) {
+    switch (group) {
+      case 0: return content.substring(start, end());
+      case 1: return content.substring(start + 2, hrefStart);
+      case 2: return content.substring(hrefStart + HREF.length(), hrefEnd);
+      case 3: return content.substring(hrefEnd + 1, tagEnd);
+      case 4: return content.substring(tagEnd + 1, textEnd);
+      default: throw new IndexOutOfBoundsException("No group " + group);
+    }
+  }
+
+  public String group() {
+    return group(0);
+  }
+
+  private boolean matchAt(int p, int tagLimit) {
+    // attributes before href can't contain '>', but href value can
+    for (int h = indexOfHref(Math.max(p + 2, hrefsTriedUpTo), tagLimit); h >= 0; h = indexOfHref(h + 1, tagLimit)) {
+      hrefsTriedUpTo = h + 1;
+      int valueStart = h + HREF.length();
+      int q = scanned(valueStart, content.indexOf('"', valueStart));
+      if (q < 0) return noMoreLinks();
+      if (q == valueStart) continue;
+      int t = tagEnds.from(q + 1);
+      if (t < 0) return noMoreLinks();
+      int e = linkTextEnd(t + 1);
+      if (e < 0) continue;
+
+      start = p;
+      hrefStart = h;
+      hrefEnd = q;
+      tagEnd = t;
+      textEnd = e;
+      return true;
+    }
+    hrefsTriedUpTo = Math.max(hrefsTriedUpTo, tagLimit);
+    return false;
+  }
+
+  /** Without a closing quote or '&gt;' after an href, no later href can start a link either */
+  private boolean noMoreLinks() {
+    noMoreLinks = true;
+    return false;
+  }
+
+  /**
+   * Link text must have at least 3 chars, not start with '&lt;' and not end with '&gt;'.
+   * Leading whitespace is matched greedily, so the longest whitespace prefix is tried first.
+   */
+  private int linkTextEnd(int textStart) {
+    // hrefs sharing the same tag end have the same link text
+    if (textStart != lastTextStart) {
+      lastTextStart = textStart;
+      lastTextEnd = findLinkTextEnd(textStart);
+    }
+    return lastTextEnd;
+  }
+
+  private int findLinkTextEnd(int textStart) {
+    int i = textStart;
+    while (i < length && isWhitespace(content.charAt(i))) i++;
+    int leadingWhitespace = i - textStart;
+    steps += leadingWhitespace;
+
+    // closing tag can't start within whitespace, so shorter prefixes than (leadingWhitespace - 3) give the same result
+    for (int k = leadingWhitespace; k >= Math.max(0, leadingWhitespace - 3); k--) {
+      if (k == leadingWhitespace && (i >= length || content.charAt(i) == '<')) continue;
+      int e = closingTagFrom(textStart + k + 3);
+      if (e >= 0) return e;
+    }
+    return -1;
+  }
+
+  private int closingTagFrom(int from) {
+    if (closingTags == null) findClosingTags();
+    steps++;
+    int i = Arrays.binarySearch(closingTags, 0, closingTagCount, from);
+    if (i < 0) i = -i - 1;
+    return i < closingTagCount ? closingTags[i] : -1;
+  }
+
+  private void findClosingTags() {
+    closingTags = new int[16];
+    for (int e = content.indexOf(CLOSING_TAG, 1); e >= 0; e = content.indexOf(CLOSING_TAG, e + 1)) {
+      if (content.charAt(e - 1) == '>') continue;
+      if (closingTagCount == closingTags.length) closingTags = Arrays.copyOf(closingTags, closingTagCount * 2);
+      closingTags[closingTagCount++] = e;
+    }
+    steps += length;
+  }
+
+  private int indexOfHref(int from, int to) {
+    for (int i = from; i < to; i++) {
+      if (content.charAt(i) == 'h' && content.startsWith(HREF, i)) return scanned(from, i);
+    }
+    steps += Math.max(0, to - from);
+    return -1;
+  }
+
+  private int scanned(int from, int found) {
+    steps += (found < 0 ? length : found) - from;
+    return found;
+  }
+
+  /** Finds '&gt;' for positions that never decrease, remembering the last one, so that no char is searched twice */
+  private class NextGt {
+    private int searchedFrom = -1, gt = -1;
+
+    int from(int from) {
+      if (searchedFrom < 0 || (gt >= 0 && from > gt)) {
+        searchedFrom = from;
+        gt = scanned(from, content.indexOf('>', from));
+      }
+      return gt;
+    }
+  }
+
+  private static boolean isWhitespace(char c) {
+    return c == ' ' || c == '\t' || c == '\n' || c == '\u000B' || c == '\f' || c == '\r';
+  }
+}
@@ -0,0 +1,125 @@
+package util;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import models.WebPageTree;
+import play.Play;
+
+import java.io.IOException;
+import java.util.*;
+import java.util.concurrent.Semaphore;
+import java.util.function.BooleanSupplier;
+
+import static java.lang.Integer.parseInt;
+import static java.util.concurrent.TimeUnit.MINUTES;
+
+/**
+ * Search results shown instead of missing pages. They are expensive, so they are cached for recently requested paths,
+ * skipped for paths that can't be a moved page, and rendered only by a limited number of requests at a time.
+ */
+public class NotFoundPages {
+  private static final Cache<Key, String> pages = CacheBuilder.newBuilder()
+      .maximumSize(parseInt(Play.configuration.getProperty("web.notFound.cacheSize", "1000")))
+      .expireAfterWrite(10, MINUTES)
+      .build();
+
+  private static volatile NameWords nameWords;
+
+  private static final Semaphore searches = new Semaphore(parseInt(Play.configuration.getProperty("web.notFound.maxSearches", "4")));
+
+  public interface Renderer {
+    String render() throws IOException;
+  }
+
+  /**
+   * Moved pages usually keep their names, so only paths whose last segment has a word of some page name are searched for.
+   * Paths like /en/wp-login.php tried by vulnerability scanners are not worth it, wherever they are.
+   */
+  public static boolean isWorthSearching(String path) {
+    WebPageTree tree = WebPageTree.current();
+    if (tree == null) return true;
+    Set<String> known = nameWords(tree).words;
+    for (String word : words(path.replaceFirst("/+$", "").replaceFirst(".*/", ""))) {
+      if (known.contains(word)) return true;
+    }
+    return false;
+  }
+
+  private static NameWords nameWords(WebPageTree tree) {
+    NameWords words = nameWords;
+    if (words == null || words.generation != tree.generation) {
+      Set<String> result = new HashSet<>();
+      for (String path : tree.paths()) {
+        result.addAll(words(path.substring(0, path.length() - 1).replaceFirst(".*/", "")));
+      }
+      nameWords = words = new NameWords(tree.generation, result);
+    }
+    return words;
+  }
+
+  /** @return lowercase words of a path segment, too short ones are ignored */
+  static List<String> words(String segment) {
+    List<String> words = new ArrayList<>();
+    for (String word : segment.toLowerCase().split("[^\\p{L}\\p{N}]+")) {
+      if (word.length() >= 3) words.add(word);
+    }
+    return words;
+  }
+
+  /**
+   * @param url requested path with the query string, as it can select another page of results
+   * @param shared tells after rendering whether the page can be shown to other users, i.e. it doesn't depend on the session
+   * @return rendered search page or null if too many searches are running already
+   */
+  public static String get(String url, String lang, String profile, Renderer renderer, BooleanSupplier shared) throws IOException {
+    WebPageTree tree = WebPageTree.current();
+    Key key = new Key(url, lang, profile, tree != null ? tree.generation : 0);
+    String html = pages.getIfPresent(key);
+    if (html != null) return html;
+
+    if (!searches.tryAcquire()) return null;
+    try {
+      html = renderer.render();
+      if (shared.getAsBoolean()) pages.put(key, html);
+      return html;
+    }
+    finally {
+      searches.release();
+    }
+  }
+
+  /** words of page names of a snapshot */
+  private static final class NameWords {
+    final long generation;
+    final Set<String> words;
+
+    NameWords(long generation, Set<String> words) {
+      this.generation = generation;
+      this.words = words;
+    }
+  }
+
+  private static final class Key {
+    final String path;
+    final String lang;
+    final String profile;
+    final long generation;
+
+    Key(String path, String lang, String profile, long generation) {
+      this.path = path;
+      this.lang = lang;
+      this.profile = profile;
+      this.generation = generation;
+    }
+
+    @Override public boolean equals(Object o) {
+      if (!(o instanceof Key)) return false;
+      Key that = (Key) o;
+      return generation == that.generation && path.equals(that.path) && Objects.equals(lang, that.lang) && profile.equals(that.profile);
+    }
+
+    @Override public int hashCode() {
+      return Objects.hash(path, lang, profile, generation);
+    }
+  }
+}
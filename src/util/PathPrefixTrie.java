@@ -0,0 +1,69 @@
+package util;
+
+import com.google.common.collect.ImmutableMap;
+
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Immutable set of path prefixes matched by whole path segments: /news matches /news/ and /news/2013/, but not /newsletter/.
+ * Lookup takes time proportional to the depth of the path, so a new trie should be built and published when prefixes change.
+ */
+public class PathPrefixTrie {
+  public static final PathPrefixTrie EMPTY = new PathPrefixTrie(new Node(false, ImmutableMap.of()));
+
+  private final Node root;
+
+  private PathPrefixTrie(Node root) {
+    this.root = root;
+  }
+
+  public static PathPrefixTrie of(Collection<String> prefixes) {
+    Builder root = new Builder();
+    for (String prefix : prefixes) {
+      Builder node = root;
+      for (String segment : prefix.split("/")) {
+        if (!segment.isEmpty()) node = node.children.computeIfAbsent(segment, s -> new Builder());
+      }
+      node.terminal = true;
+    }
+    return new PathPrefixTrie(root.build());
+  }
+
+  public boolean matches(String path) {
+    Node node = root;
+    int start = 0, length = path.length();
+    while (!node.terminal) {
+      while (start < length && path.charAt(start) == '/') start++;
+      if (start == length) return false;
+      int end = path.indexOf('/', start);
+      if (end < 0) end = length;
+      node = node.children.get(path.substring(start, end));
+      if (node == null) return false;
+      start = end;
+    }
+    return true;
+  }
+
+  private static final class Node {
+    final boolean terminal;
+    final Map<String, Node> children;
+
+    Node(boolean terminal, Map<String, Node> children) {
+      this.terminal = terminal;
+      this.children = children;
+    }
+  }
+
+  private static final class Builder {
+    boolean terminal;
+    final Map<String, Builder> children = new HashMap<>();
+
+    Node build() {
+      ImmutableMap.Builder<String, Node> nodes = ImmutableMap.builder();
+      for (Map.Entry<String, Builder> child : children.entrySet()) nodes.put(child.getKey(), child.getValue().build());
+      return new Node(terminal, nodes.build());
+    }
+  }
+}
@@ -0,0 +1,105 @@
+package util;
+
+import org.apache.lucene.index.AtomicReaderContext;
+import org.apache.lucene.index.NumericDocValues;
+import org.apache.lucene.index.SortedDocValues;
+import org.apache.lucene.queries.CustomScoreProvider;
+import org.apache.lucene.queries.CustomScoreQuery;
+import org.apache.lucene.search.FieldCache;
+import org.apache.lucene.search.Query;
+import org.apache.lucene.util.BytesRef;
+import play.Play;
+import play.libs.Time;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+import static java.lang.Float.parseFloat;
+
+/**
+ * Multiplies scores of the wrapped query by weight of the page section and by recency of the page,
+ * which halves every half-life but doesn't go below the minimum, so that old pages can still be found.
+ * Computed at query time, so ranking doesn't depend on when the page was indexed.
+ */
+public class RecencyQuery extends CustomScoreQuery {
+  static final String DATE_FIELD = "timestamp";
+  static final String SECTION_FIELD = "section";
+  private static final String SECTION_WEIGHT_PREFIX = "web.search.weight.";
+
+  private final long now;
+  private final double halfLife;
+  private final float minWeight;
+  private final Map<String, Float> sectionWeights;
+
+  RecencyQuery(Query query, long now, long halfLifeMillis, float minWeight, Map<String, Float> sectionWeights) {
+    super(query);
+    this.now = now;
+    this.halfLife = halfLifeMillis;
+    this.minWeight = minWeight;
+    this.sectionWeights = sectionWeights;
+  }
+
+  /**
+   * Configured with web.search.halfLife (default 90d), web.search.minWeight (default 0.05)
+   * and web.search.weight.&lt;top-level page name&gt; for sections (default 1)
+   */
+  public static RecencyQuery configured(Query query) {
+    long halfLife = Time.parseDuration(Play.configuration.getProperty("web.search.halfLife", "90d")) * 1000L;
+    float minWeight = parseFloat(Play.configuration.getProperty("web.search.minWeight", "0.05"));
+    Map<String, Float> sectionWeights = new HashMap<>();
+    for (String key : Play.configuration.stringPropertyNames()) {
+      if (key.startsWith(SECTION_WEIGHT_PREFIX))
+        sectionWeights.put(key.substring(SECTION_WEIGHT_PREFIX.length()), parseFloat(Play.configuration.getProperty(key)));
+    }
+    return new RecencyQuery(query, System.currentTimeMillis(), halfLife, minWeight, sectionWeights);
+  }
+
+  float recency(long date) {
+    double age = Math.max(0, now - date);
+    return (float) Math.max(minWeight, Math.pow(0.5, age / halfLife));
+  }
+
+  @Override protected CustomScoreProvider getCustomScoreProvider(AtomicReaderContext context) throws IOException {
+    NumericDocValues dates = context.reader().getNumericDocValues(DATE_FIELD);
+    SortedDocValues sections = sectionWeights.isEmpty() ? null : FieldCache.DEFAULT.getTermsIndex(context.reader(), SECTION_FIELD);
+    float[] weightsByOrd = sections == null ? null : weightsByOrd(sections);
+
+    return new CustomScoreProvider(context) {
+      @Override public float customScore(int doc, float subQueryScore, float valSrcScore) {
+        float score = subQueryScore;
+        if (dates != null) score *= recency(dates.get(doc));
+        if (sections != null) {
+          int ord = sections.getOrd(doc);
+          if (ord >= 0) score *= weightsByOrd[ord];
+        }
+        return score;
+      }
+    };
+  }
+
+  private float[] weightsByOrd(SortedDocValues sections) {
+    float[] weights = new float[sections.getValueCount()];
+    Arrays.fill(weights, 1f);
+    for (Map.Entry<String, Float> section : sectionWeights.entrySet()) {
+      int ord = sections.lookupTerm(new BytesRef(section.getKey()));
+      if (ord >= 0) weights[ord] = section.getValue();
+    }
+    return weights;
+  }
+
+  @Override public String name() {
+    return "recency";
+  }
+
+  @Override public boolean equals(Object o) {
+    if (!super.equals(o)) return false;
+    RecencyQuery that = (RecencyQuery) o;
+    return now == that.now && halfLife == that.halfLife && minWeight == that.minWeight && sectionWeights.equals(that.sectionWeights);
+  }
+
+  @Override public int hashCode() {
+    return 31 * super.hashCode() + Long.hashCode(now);
+  }
+}
@@ -0,0 +1,163 @@
+package util;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import models.WebPage;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import play.Play;
+import play.vfs.VirtualFile;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BooleanSupplier;
+import java.util.function.Supplier;
+
+import static java.lang.Long.parseLong;
+import static java.util.Collections.disjoint;
+import static java.util.Collections.singleton;
+
+/**
+ * Rendered html of web pages, kept until the files of the page change or pages are added, removed or their metadata changes,
+ * so that requests don't touch the disk. Changes are reported by the content watcher, pulls, the page tree and WebAdmin.
+ * Only one request renders a missing or outdated page at a time: others wait for it if there is nothing to show yet,
+ * or get the previous version while it is being rendered.
+ */
+public class RenderCache {
+  private static final Logger logger = LoggerFactory.getLogger(RenderCache.class);
+
+  private static final Cache<Key, Entry> pages = CacheBuilder.newBuilder()
+      .maximumWeight(parseLong(Play.configuration.getProperty("web.renderCache.maxBytes", String.valueOf(32 * 1024 * 1024))))
+      .weigher((Key key, Entry entry) -> 2 * (key.path.length() + entry.html.length()) + 64)
+      .build();
+
+  private static final ConcurrentMap<Key, FutureTask<Entry>> rendering = new ConcurrentHashMap<>();
+
+  /** increases with every invalidation, so that pages rendered meanwhile are not taken as up to date */
+  private static final AtomicLong invalidations = new AtomicLong();
+
+  /**
+   * @param profile what the user is allowed to see, e.g. "anonymous"
+   * @param renderer renders the page in the calling thread
+   * @param shared tells after rendering whether the html can be shown to other users, i.e. it doesn't depend on the session
+   */
+  public static String get(WebPage page, String lang, String profile, Supplier<String> renderer, BooleanSupplier shared) {
+    Key key = new Key(page.path, lang, profile);
+    Entry entry = pages.getIfPresent(key);
+    if (entry != null && !entry.outdated) return entry.html;
+
+    FutureTask<Entry> task = new FutureTask<>(() -> render(page, renderer, shared));
+    FutureTask<Entry> inProgress = rendering.putIfAbsent(key, task);
+    if (inProgress != null) {
+      if (entry != null) return entry.html;
+      try {
+        Entry rendered = inProgress.get();
+        if (rendered.shared) return rendered.html;
+      }
+      catch (ExecutionException | InterruptedException e) {
+        logger.debug("Concurrent rendering of " + page.path + " failed, rendering again", e);
+      }
+      return renderer.get();
+    }
+
+    try {
+      task.run();
+      Entry rendered = task.get();
+      if (rendered.shared) {
+        pages.put(key, rendered);
+        if (invalidations.get() != rendered.invalidations) rendered.outdated = true;
+      }
+      return rendered.html;
+    }
+    catch (ExecutionException e) {
+      if (e.getCause() instanceof RuntimeException) throw (RuntimeException) e.getCause();
+      throw new RuntimeException(e.getCause());
+    }
+    catch (InterruptedException e) {
+      throw new RuntimeException(e);
+    }
+    finally {
+      rendering.remove(key, task);
+    }
+  }
+
+  private static Entry render(WebPage page, Supplier<String> renderer, BooleanSupplier shared) {
+    long invalidated = invalidations.get();
+    Set<String> dirs = new HashSet<>(2);
+    dirs.add(dirPath(page.dir));
+    dirs.add(dirPath(page.contentSource().dir));
+    String html = renderer.get();
+    return new Entry(invalidated, dirs, html, shared.getAsBoolean());
+  }
+
+  private static String dirPath(VirtualFile dir) {
+    String path = dir.getRealFile().getPath().replace(WebPage.ROOT.dir.getRealFile().getPath(), "").replace('\\', '/');
+    return normalize(path);
+  }
+
+  private static String normalize(String path) {
+    if (!path.startsWith("/")) path = "/" + path;
+    if (!path.endsWith("/")) path += "/";
+    return path;
+  }
+
+  /** Pages consist of files of their dirs and of their contentFrom source, including downloads, as their sizes are shown in links */
+  public static void invalidate(String dirPath) {
+    invalidate(singleton(dirPath));
+  }
+
+  /** @param dirPaths dirs whose files have changed, relative to the content dir, e.g. /en/about/ */
+  public static void invalidate(Collection<String> dirPaths) {
+    Set<String> paths = new HashSet<>();
+    for (String path : dirPaths) paths.add(normalize(path));
+    invalidations.incrementAndGet();
+    for (Entry entry : pages.asMap().values()) {
+      if (!disjoint(entry.dirs, paths)) entry.outdated = true;
+    }
+  }
+
+  /** Pages include menus and listings built from other pages, so all of them are outdated when pages are added or removed */
+  public static void invalidateAll() {
+    invalidations.incrementAndGet();
+    for (Entry entry : pages.asMap().values()) entry.outdated = true;
+  }
+
+  private static final class Entry {
+    final long invalidations;
+    final Set<String> dirs;
+    final String html;
+    final boolean shared;
+    /** still shown while the page is being rendered again */
+    volatile boolean outdated;
+
+    Entry(long invalidations, Set<String> dirs, String html, boolean shared) {
+      this.invalidations = invalidations;
+      this.dirs = dirs;
+      this.html = html;
+      this.shared = shared;
+    }
+  }
+
+  private static final class Key {
+    final String path;
+    final String lang;
+    final String profile;
+
+    Key(String path, String lang, String profile) {
+      this.path = path;
+      this.lang = lang;
+      this.profile = profile;
+    }
+
+    @Override public boolean equals(Object o) {
+      if (!(o instanceof Key)) return false;
+      Key that = (Key) o;
+      return path.equals(that.path) && Objects.equals(lang, that.lang) && profile.equals(that.profile);
+    }
+
+    @Override public int hashCode() {
+      return Objects.hash(path, lang, profile);
+    }
+  }
+}
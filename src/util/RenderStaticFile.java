@@ -0,0 +1,184 @@
+package util;
+
+import org.apache.commons.io.input.BoundedInputStream;
+import play.exceptions.UnexpectedException;
+import play.libs.MimeTypes;
+import play.mvc.Http;
+import play.mvc.results.Result;
+import play.utils.Utils;
+
+import java.io.*;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.text.ParseException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+
+import static java.nio.file.StandardOpenOption.READ;
+import static org.apache.commons.lang.StringUtils.isEmpty;
+
+/**
+ * Serves a file with support for conditional and byte range requests, e.g. seeking in audio or resuming downloads.
+ * Whole files are streamed like ranges: Play would replace the ETag of a file passed as is with its own one,
+ * which then wouldn't match in If-Range and If-None-Match of the following requests.
+ */
+public class RenderStaticFile extends Result {
+  static final int MAX_RANGES = 16;
+
+  private final File file;
+
+  public RenderStaticFile(File file) {
+    this.file = file;
+  }
+
+  @Override public void apply(Http.Request request, Http.Response response) {
+    long length = file.length();
+    long lastModified = file.lastModified() / 1000 * 1000;
+    String etag = "\"" + Long.toHexString(lastModified) + "-" + Long.toHexString(length) + "\"";
+    String contentType = MimeTypes.getContentType(file.getName(), "application/octet-stream");
+
+    response.setHeader("ETag", etag);
+    response.setHeader("Last-Modified", Utils.getHttpDateFormatter().format(new Date(lastModified)));
+    response.setHeader("Accept-Ranges", "bytes");
+
+    if (isNotModified(request, etag, lastModified)) {
+      response.status = Http.StatusCode.NOT_MODIFIED;
+      return;
+    }
+
+    List<long[]> ranges = rangeApplies(request, etag, lastModified) ? parseRanges(header(request, "range"), length) : null;
+    try {
+      if (ranges == null) {
+        response.contentType = contentType;
+        response.setHeader("Content-Length", String.valueOf(length));
+        response.direct = length == 0 ? new ByteArrayInputStream(new byte[0]) : region(new long[] {0, length - 1});
+      }
+      else if (ranges.isEmpty()) {
+        response.status = 416;
+        response.setHeader("Content-Range", "bytes */" + length);
+      }
+      else if (ranges.size() == 1) {
+        long[] range = ranges.get(0);
+        response.status = 206;
+        response.contentType = contentType;
+        response.setHeader("Content-Range", contentRange(range, length));
+        response.setHeader("Content-Length", String.valueOf(range[1] - range[0] + 1));
+        response.direct = region(range);
+      }
+      else {
+        String boundary = Long.toHexString(System.nanoTime()) + Long.toHexString(length);
+        response.status = 206;
+        response.contentType = "multipart/byteranges; boundary=" + boundary;
+        applyMultipart(response, ranges, contentType, boundary, length);
+      }
+    }
+    catch (IOException e) {
+      throw new UnexpectedException(e);
+    }
+  }
+
+  private void applyMultipart(Http.Response response, List<long[]> ranges, String contentType, String boundary, long length) throws IOException {
+    List<InputStream> parts = new ArrayList<>(ranges.size() * 2 + 1);
+    long contentLength = 0;
+    for (long[] range : ranges) {
+      byte[] partHeader = ("\r\n--" + boundary + "\r\nContent-Type: " + contentType + "\r\nContent-Range: " + contentRange(range, length) + "\r\n\r\n")
+          .getBytes(StandardCharsets.ISO_8859_1);
+      parts.add(new ByteArrayInputStream(partHeader));
+      parts.add(region(range));
+      contentLength += partHeader.length + range[1] - range[0] + 1;
+    }
+    byte[] end = ("\r\n--" + boundary + "--\r\n").getBytes(StandardCharsets.ISO_8859_1);
+    parts.add(new ByteArrayInputStream(end));
+    contentLength += end.length;
+
+    response.setHeader("Content-Length", String.valueOf(contentLength));
+    response.direct = new SequenceInputStream(Collections.enumeration(parts));
+  }
+
+  private InputStream region(long[] range) throws IOException {
+    FileChannel channel = FileChannel.open(file.toPath(), READ).position(range[0]);
+    return new BoundedInputStream(Channels.newInputStream(channel), range[1] - range[0] + 1);
+  }
+
+  private static String contentRange(long[] range, long length) {
+    return "bytes " + range[0] + "-" + range[1] + "/" + length;
+  }
+
+  static boolean isNotModified(Http.Request request, String etag, long lastModified) {
+    String ifNoneMatch = header(request, "if-none-match");
+    if (ifNoneMatch != null) return matchesEtag(ifNoneMatch, etag);
+    Date ifModifiedSince = parseDate(header(request, "if-modified-since"));
+    return ifModifiedSince != null && lastModified <= ifModifiedSince.getTime();
+  }
+
+  /** If-Range asks for the range only if the file is still the same, otherwise the whole file must be sent */
+  static boolean rangeApplies(Http.Request request, String etag, long lastModified) {
+    if (!"GET".equals(request.method) || header(request, "range") == null) return false;
+    String ifRange = header(request, "if-range");
+    if (ifRange == null) return true;
+    if (ifRange.startsWith("\"")) return ifRange.equals(etag);
+    Date date = parseDate(ifRange);
+    return date != null && date.getTime() == lastModified;
+  }
+
+  private static boolean matchesEtag(String header, String etag) {
+    for (String tag : header.split(",")) {
+      tag = tag.trim();
+      if (tag.startsWith("W/")) tag = tag.substring(2);
+      if (tag.equals("*") || tag.equals(etag)) return true;
+    }
+    return false;
+  }
+
+  /**
+   * @return satisfiable ranges as [first, last] byte positions, empty list if none is satisfiable
+   * or null if the header is invalid and should be ignored
+   */
+  static List<long[]> parseRanges(String header, long length) {
+    if (header == null || !header.startsWith("bytes=")) return null;
+    String[] specs = header.substring("bytes=".length()).split(",");
+    if (specs.length > MAX_RANGES) return null;
+
+    List<long[]> ranges = new ArrayList<>(specs.length);
+    for (String spec : specs) {
+      spec = spec.trim();
+      int dash = spec.indexOf('-');
+      if (dash < 0) return null;
+      try {
+        String first = spec.substring(0, dash).trim(), last = spec.substring(dash + 1).trim();
+        if (isEmpty(first)) {
+          long suffix = Long.parseLong(last);
+          if (suffix > 0 && length > 0) ranges.add(new long[] {Math.max(0, length - suffix), length - 1});
+        }
+        else {
+          long start = Long.parseLong(first);
+          long end = isEmpty(last) ? length - 1 : Math.min(Long.parseLong(last), length - 1);
+          if (!isEmpty(last) && Long.parseLong(last) < start) return null;
+          if (start < length) ranges.add(new long[] {start, end});
+        }
+      }
+      catch (NumberFormatException e) {
+        return null;
+      }
+    }
+    return ranges;
+  }
+
+  private static String header(Http.Request request, String name) {
+    Http.Header header = request.headers.get(name);
+    return header == null ? null : header.value();
+  }
+
+  private static Date parseDate(String value) {
+    if (value == null) return null;
+    try {
+      return Utils.getHttpDateFormatter().parse(value);
+    }
+    catch (ParseException e) {
+      return null;
+    }
+  }
+}
@@ -0,0 +1,66 @@
+package util;
+
+import org.apache.lucene.document.Document;
+import org.apache.lucene.index.IndexableField;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+
+/**
+ * Page found by WebPageIndexer, made only of stored fields of the index, so showing results doesn't touch the content dir.
+ */
+public class SearchHit {
+  public final String path;
+  public final String title;
+  public final String description;
+  public final Date date;
+  public final String section;
+  public final String tags;
+  /** parent pages below the locale root, top-most first, like WebPage.parents() */
+  public final List<Parent> parents;
+
+  SearchHit(Document doc) {
+    path = doc.get("path");
+    title = doc.get("title");
+    description = doc.get("description");
+    IndexableField date = doc.getField("date");
+    this.date = date != null ? new Date(date.numericValue().longValue()) : null;
+    section = doc.get("section");
+    tags = doc.get("tags");
+    parents = parents(path, doc.getValues("parent"));
+  }
+
+  /** @return the same as the field, for templates that used to show WebPage results */
+  public List<Parent> parents() {
+    return parents;
+  }
+
+  /** parents are stored as titles only, their paths are the nearest ancestor paths of the page */
+  static List<Parent> parents(String path, String[] titles) {
+    List<String> ancestors = new ArrayList<>();
+    for (int slash = path.indexOf('/', 1); slash > 0 && slash < path.length() - 1; slash = path.indexOf('/', slash + 1)) {
+      ancestors.add(path.substring(0, slash + 1));
+    }
+    List<Parent> parents = new ArrayList<>(titles.length);
+    int first = ancestors.size() - titles.length;
+    for (int i = 0; i < titles.length; i++) {
+      parents.add(new Parent(first + i >= 0 ? ancestors.get(first + i) : null, titles[i]));
+    }
+    return parents;
+  }
+
+  public static class Parent {
+    public final String path;
+    public final String title;
+
+    Parent(String path, String title) {
+      this.path = path;
+      this.title = title;
+    }
+
+    @Override public String toString() {
+      return title;
+    }
+  }
+}
@@ -0,0 +1,30 @@
+package util;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Maps;
+
+import java.util.*;
+
+import static java.util.Comparator.comparingLong;
+
+/**
+ * Tags with their share of all tag usages. Tags sorted by usage are put alternately to the start and to the end,
+ * so that tags of different sizes are mixed in the cloud.
+ */
+public class TagCloud {
+  public static List<Map.Entry<String, Float>> of(Map<String, ? extends Number> counts) {
+    long total = 0;
+    List<Map.Entry<String, ? extends Number>> tags = new ArrayList<>(counts.entrySet());
+    for (Map.Entry<String, ? extends Number> tag : tags) total += tag.getValue().longValue();
+    tags.sort(comparingLong(t -> t.getValue().longValue()));
+
+    Deque<Map.Entry<String, Float>> result = new ArrayDeque<>(tags.size());
+    boolean even = false;
+    for (Map.Entry<String, ? extends Number> tag : tags) {
+      Map.Entry<String, Float> tagFreq = Maps.immutableEntry(tag.getKey(), tag.getValue().floatValue() / total);
+      if (even) result.addFirst(tagFreq); else result.addLast(tagFreq);
+      even = !even;
+    }
+    return ImmutableList.copyOf(result);
+  }
+}
@@ -0,0 +1,160 @@
+package util;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import play.Play;
+import play.libs.Codec;
+
+import javax.imageio.ImageIO;
+import java.awt.*;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.concurrent.*;
+
+import static java.awt.RenderingHints.*;
+import static java.lang.Integer.parseInt;
+import static java.nio.file.StandardCopyOption.ATOMIC_MOVE;
+import static java.nio.file.StandardCopyOption.REPLACE_EXISTING;
+
+/**
+ * Scaled down images stored on disk, so that every thumbnail is generated only once per source file version.
+ * Heights are rounded up to a fixed set of sizes, so clients cannot make the server render arbitrary many variants.
+ */
+public class Thumbnails {
+  private static final Logger logger = LoggerFactory.getLogger(Thumbnails.class);
+  static final int[] HEIGHTS = {32, 48, 64, 80, 100, 128, 160, 200, 256, 320, 400, 512, 640, 800};
+
+  private static final ExecutorService workers = new ThreadPoolExecutor(
+      threads(), threads(), 60, TimeUnit.SECONDS,
+      new ArrayBlockingQueue<>(parseInt(Play.configuration.getProperty("web.thumbnails.queue", "100"))),
+      runnable -> {
+        Thread thread = new Thread(runnable, "thumbnails");
+        thread.setDaemon(true);
+        return thread;
+      });
+
+  private static final ConcurrentMap<File, Future<File>> generating = new ConcurrentHashMap<>();
+
+  /** request threads blocked by thumbnails, kept below the size of Play's invoker pool, so that pages are still served */
+  private static final Semaphore waiting = new Semaphore(parseInt(Play.configuration.getProperty("web.thumbnails.maxWaiting", String.valueOf(maxWaiting()))));
+
+  /**
+   * @return generated thumbnail file, waiting for it if needed
+   * @throws RejectedExecutionException if too many images are already being scaled or waited for
+   */
+  public static File get(File image, int height) throws IOException {
+    File thumbnail = file(image, bucket(height));
+    if (thumbnail.exists()) return thumbnail;
+
+    if (!waiting.tryAcquire()) throw new RejectedExecutionException("Too many requests are waiting for thumbnails");
+    try {
+      return submitAndWait(image, thumbnail, height);
+    }
+    finally {
+      waiting.release();
+    }
+  }
+
+  private static File submitAndWait(File image, File thumbnail, int height) throws IOException {
+    FutureTask<File> task = new FutureTask<>(() -> generate(image, thumbnail, bucket(height)));
+    Future<File> inProgress = generating.putIfAbsent(thumbnail, task);
+    if (inProgress == null) {
+      inProgress = task;
+      try {
+        workers.execute(() -> {
+          try {
+            task.run();
+          }
+          finally {
+            generating.remove(thumbnail, task);
+          }
+        });
+      }
+      catch (RejectedExecutionException e) {
+        generating.remove(thumbnail, task);
+        throw e;
+      }
+    }
+
+    try {
+      return inProgress.get();
+    }
+    catch (InterruptedException e) {
+      throw new IOException(e);
+    }
+    catch (ExecutionException e) {
+      if (e.getCause() instanceof IOException) throw (IOException) e.getCause();
+      throw new IOException(e.getCause());
+    }
+  }
+
+  /** @return the smallest fixed height not less than the requested one */
+  static int bucket(int height) {
+    for (int bucket : HEIGHTS) {
+      if (bucket >= height) return bucket;
+    }
+    return HEIGHTS[HEIGHTS.length - 1];
+  }
+
+  static File file(File image, int height) {
+    return new File(dir(), key(image) + "-" + image.lastModified() + "-" + height + ".png");
+  }
+
+  private static File generate(File image, File thumbnail, int height) throws IOException {
+    BufferedImage img = ImageIO.read(image);
+    if (img == null) throw new IOException("Unsupported image: " + image);
+
+    BufferedImage resized = new BufferedImage(Math.max(1, img.getWidth() * height / img.getHeight()), height,
+        img.getType() == BufferedImage.TYPE_CUSTOM ? BufferedImage.TYPE_INT_ARGB : img.getType());
+    Graphics2D g = resized.createGraphics();
+    g.setRenderingHint(KEY_INTERPOLATION, VALUE_INTERPOLATION_BILINEAR);
+    g.setRenderingHint(KEY_RENDERING, VALUE_RENDER_QUALITY);
+    g.setRenderingHint(KEY_ANTIALIASING, VALUE_ANTIALIAS_ON);
+    g.drawImage(img, 0, 0, resized.getWidth(), resized.getHeight(), null);
+    g.dispose();
+
+    thumbnail.getParentFile().mkdirs();
+    File tmp = new File(thumbnail.getPath() + "." + Thread.currentThread().getId() + ".tmp");
+    try {
+      ImageIO.write(resized, "png", tmp);
+      Files.move(tmp.toPath(), thumbnail.toPath(), REPLACE_EXISTING, ATOMIC_MOVE);
+    }
+    finally {
+      tmp.delete();
+    }
+    deleteOutdated(image, thumbnail);
+    return thumbnail;
+  }
+
+  /** Thumbnails of previous versions of the image are not needed anymore */
+  private static void deleteOutdated(File image, File thumbnail) {
+    String prefix = key(image) + "-";
+    String current = prefix + image.lastModified() + "-";
+    File[] files = thumbnail.getParentFile().listFiles((dir, name) -> name.startsWith(prefix) && !name.startsWith(current));
+    if (files == null) return;
+    for (File file : files) {
+      if (!file.delete()) logger.warn("Cannot delete outdated thumbnail " + file);
+    }
+  }
+
+  private static String key(File image) {
+    return Codec.hexSHA1(image.getAbsolutePath());
+  }
+
+  private static File dir() {
+    File tmpDir = Play.tmpDir != null ? Play.tmpDir : new File(System.getProperty("java.io.tmpdir"));
+    return new File(tmpDir, "thumbnails");
+  }
+
+  private static int maxWaiting() {
+    int invokerThreads = parseInt(Play.configuration.getProperty("play.pool", String.valueOf(Runtime.getRuntime().availableProcessors() + 1)));
+    return Math.max(1, invokerThreads / 2);
+  }
+
+  private static int threads() {
+    int defaultThreads = Math.max(1, Runtime.getRuntime().availableProcessors() / 2);
+    return parseInt(Play.configuration.getProperty("web.thumbnails.threads", String.valueOf(defaultThreads)));
+  }
+}
@@ -1,28 +1,36 @@
 package util;
 
+import com.google.common.collect.ImmutableMap;
 import models.WebPage;
 import org.apache.lucene.analysis.Analyzer;
+import org.apache.lucene.analysis.TokenStream;
 import org.apache.lucene.analysis.ru.RussianAnalyzer;
-import org.apache.lucene.document.Document;
-import org.apache.lucene.document.Field;
-import org.apache.lucene.document.TextField;
+import org.apache.lucene.analysis.tokenattributes.CharTermAttribute;
+import org.apache.lucene.analysis.tokenattributes.PositionIncrementAttribute;
+import org.apache.lucene.document.*;
 import org.apache.lucene.index.*;
-import org.apache.lucene.queryparser.classic.QueryParser;
-import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.*;
 import org.apache.lucene.store.Directory;
 import org.apache.lucene.store.FSDirectory;
+import org.apache.lucene.util.Bits;
+import org.apache.lucene.util.BytesRef;
 import org.apache.lucene.util.Version;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import play.Play;
+import play.jobs.Job;
 
 import java.io.File;
 import java.io.IOException;
-import java.util.HashMap;
-import java.util.Map;
+import java.io.StringReader;
+import java.nio.file.Path;
+import java.util.*;
+import java.util.concurrent.*;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
-import static java.util.Collections.unmodifiableMap;
+import static java.lang.Integer.parseInt;
+import static java.util.Collections.*;
 import static models.WebPage.removeTags;
 import static org.apache.commons.lang.StringUtils.join;
 import static org.apache.commons.lang.StringUtils.split;
@@ -31,12 +39,18 @@ public class WebPageIndexer {
   private static final Logger logger = LoggerFactory.getLogger(WebPageIndexer.class);
 
   private static final Version version = Version.LUCENE_43;
+  private static final String COMMIT_KEY = "contentCommit";
+  private static final String FORMAT_KEY = "format";
+  private static final String FORMAT_VERSION = "3";
+  private static final String TAGS_KEY = "tagsFreq";
+  /** fields searched by user queries with their boosts */
+  private static final Map<String, Float> SEARCH_FIELDS = ImmutableMap.of("title", 3f, "text", 1f, "keywords", 2f, "path", 2f);
   private Directory dir;
-  public IndexReader reader;
-  public IndexSearcher searcher;
-  public QueryParser queryParser;
+  /** swaps searchers after reindexing, closing old readers only when searches running on them are finished */
+  private volatile SearcherManager searchers;
   private Analyzer analyzer;
-  public Map<String, Map<String, AtomicInteger>> tagsFreqByTopPage = new HashMap<>();
+  public volatile Map<String, Map<String, AtomicInteger>> tagsFreqByTopPage = new HashMap<>();
+  private volatile Map<String, List<Map.Entry<String, Float>>> tagClouds = emptyMap();
 
   private static final WebPageIndexer instance = new WebPageIndexer();
   public static WebPageIndexer getInstance() {
@@ -55,6 +69,7 @@ public class WebPageIndexer {
 
     try {
       reopenIndex();
+      setTagsFreq(decodeTagsFreq(lastCommitData().get(TAGS_KEY)));
     }
     catch (IOException ignore) {}
   }
@@ -66,38 +81,370 @@ public class WebPageIndexer {
   public synchronized void indexWebPages() throws IOException {
     logger.info("Indexing web pages...");
     long start = System.currentTimeMillis();
+    String head = head();
 
     IndexWriterConfig conf = new IndexWriterConfig(version, analyzer);
     try (final IndexWriter writer = new IndexWriter(dir, conf)) {
       writer.deleteAll();
 
-      Map<String, Map<String, AtomicInteger>> tagsFreqByTopPage = new HashMap<>();
-      for (WebPage page : WebPage.ROOT.childrenRecursively()) {
-        if (page instanceof WebPage.News && !((WebPage.News) page).isStory()) continue;
-        if ("true".equals(page.metadata.getProperty("hidden", "false"))) continue;
+      List<WebPage> pages = pagesToIndex();
+      setTagsFreq(unmodifiableMap(addDocuments(writer, pages)));
+      commit(writer, head, tagsFreqByTopPage);
+      logger.info("Indexed " + writer.numDocs() + " pages in " + ((System.currentTimeMillis() - start) / 1000) + " sec");
+    }
+
+    reopenIndex();
+  }
+
+  /** Reindexes pages changed since the last indexed commit in background, to be called after new commits */
+  public void indexChangesInBackground() {
+    if (!shouldIndex()) return;
+    new Job() {
+      @Override public void doJob() throws Exception {
+        indexChanges();
+      }
+    }.now();
+  }
+
+  /**
+   * Reindexes only pages changed in git since the last indexed commit, falling back to indexWebPages()
+   * if the index or its commit are unknown.
+   */
+  public synchronized void indexChanges() throws IOException {
+    String indexedCommit = indexedCommit();
+    String head = head();
+    if (indexedCommit == null || head == null) {
+      indexWebPages();
+      return;
+    }
+    if (head.equals(indexedCommit)) return;
 
-        float boost = 3600 * 24 * 1000.0f / (System.currentTimeMillis() - page.date().getTime());
+    Map<String, String> changedFiles;
+    try {
+      changedFiles = Git.changedFiles(indexedCommit, head);
+    }
+    catch (IOException | InterruptedException | Git.ExecException e) {
+      logger.warn("Cannot get changes since " + indexedCommit + ", reindexing everything: " + e);
+      indexWebPages();
+      return;
+    }
 
-        Document doc = new Document();
-        doc.add(withBoost(boost, new TextField("path", page.path, Field.Store.YES)));
-        doc.add(withBoost(boost, new TextField("title", page.title, Field.Store.NO)));
-        doc.add(withBoost(boost, new TextField("keywords", page.metadata.getProperty("description", "") + " " + page.metadata.getProperty("keywords", ""), Field.Store.NO)));
+    long start = System.currentTimeMillis();
+    Set<String> changedDirs = new HashSet<>(), metadataDirs = new HashSet<>();
+    for (String file : changedFiles.keySet()) {
+      int slash = file.lastIndexOf('/');
+      if (slash <= 0) continue;
+      changedDirs.add(file.substring(0, slash + 1));
+      // titles of parents are stored with their descendants
+      if (file.endsWith("/metadata.properties")) metadataDirs.add(file.substring(0, slash + 1));
+    }
 
-        String tags = page.metadata.getProperty("tags", "");
-        calcTagFreq(tagsFreqByTopPage, page, tags);
-        doc.add(withBoost(boost, new TextField("tags", tags, Field.Store.YES)));
+    int updated = 0, deleted = 0;
+    try (IndexWriter writer = new IndexWriter(dir, new IndexWriterConfig(version, analyzer))) {
+      List<WebPage> pages = pagesToIndex();
+      Set<String> paths = new HashSet<>();
+      for (WebPage page : pages) {
+        paths.add(page.path);
+        String dir = relativeDir(page);
+        if (changedDirs.contains(dir) || changedDirs.contains(relativeDir(page.contentSource())) || isBelowAny(dir, metadataDirs)) {
+          writer.updateDocument(new Term("id", page.path), document(page));
+          updated++;
+        }
+      }
 
-        doc.add(withBoost(boost, new TextField("text", removeTags(join(page.contentParts().values(), ' ')), Field.Store.NO)));
-        writer.addDocument(doc);
+      // pages can disappear without changes in their own dirs, e.g. when contentFrom is changed
+      try (DirectoryReader reader = DirectoryReader.open(dir)) {
+        Terms ids = MultiFields.getTerms(reader, "id");
+        Bits liveDocs = MultiFields.getLiveDocs(reader);
+        TermsEnum id = ids == null ? null : ids.iterator(null);
+        DocsEnum docs = null;
+        for (BytesRef term = id == null ? null : id.next(); term != null; term = id.next()) {
+          if (paths.contains(term.utf8ToString())) continue;
+          // terms stay in the index until segments are merged, also for already deleted documents
+          docs = id.docs(liveDocs, docs, DocsEnum.FLAG_NONE);
+          if (docs.nextDoc() != DocIdSetIterator.NO_MORE_DOCS) {
+            writer.deleteDocuments(new Term("id", BytesRef.deepCopyOf(term)));
+            deleted++;
+          }
+        }
       }
-      this.tagsFreqByTopPage = unmodifiableMap(tagsFreqByTopPage);
-      logger.info("Indexed " + writer.numDocs() + " pages in " + ((System.currentTimeMillis() - start) / 1000) + " sec");
+
+      setTagsFreq(tagsFreq(pages));
+      commit(writer, head, tagsFreqByTopPage);
     }
 
     reopenIndex();
+    logger.info("Indexed changes since " + indexedCommit + ": " + updated + " pages updated, " + deleted + " deleted in " + (System.currentTimeMillis() - start) + " ms");
+  }
+
+  /**
+   * Builds documents in parallel, as processing of content and analysis take most of the time.
+   * IndexWriter is thread-safe, so workers add documents directly; every worker counts tags of its own pages.
+   * @return tag frequencies of all pages
+   */
+  private static Map<String, Map<String, AtomicInteger>> addDocuments(IndexWriter writer, List<WebPage> pages) throws IOException {
+    int threads = parseInt(Play.configuration.getProperty("web.index.threads", String.valueOf(Runtime.getRuntime().availableProcessors())));
+    ExecutorService workers = Executors.newFixedThreadPool(threads, runnable -> new Thread(runnable, "web-indexer"));
+    AtomicInteger done = new AtomicInteger();
+    AtomicLong lastReport = new AtomicLong(System.currentTimeMillis());
+    try {
+      List<Future<Map<String, Map<String, AtomicInteger>>>> results = new ArrayList<>();
+      int chunk = Math.max(1, pages.size() / (threads * 8));
+      for (int from = 0; from < pages.size(); from += chunk) {
+        List<WebPage> part = pages.subList(from, Math.min(pages.size(), from + chunk));
+        results.add(workers.submit(() -> {
+          Map<String, Map<String, AtomicInteger>> tagsFreq = new HashMap<>();
+          for (WebPage page : part) {
+            writer.addDocument(document(page));
+            calcTagFreq(tagsFreq, page, page.metadata.getProperty("tags", ""));
+            reportProgress(done.incrementAndGet(), pages.size(), lastReport);
+          }
+          return tagsFreq;
+        }));
+      }
+
+      Map<String, Map<String, AtomicInteger>> tagsFreqByTopPage = new HashMap<>();
+      for (Future<Map<String, Map<String, AtomicInteger>>> result : results) {
+        for (Map.Entry<String, Map<String, AtomicInteger>> section : result.get().entrySet()) {
+          Map<String, AtomicInteger> freq = tagsFreqByTopPage.computeIfAbsent(section.getKey(), k -> new HashMap<>());
+          for (Map.Entry<String, AtomicInteger> tag : section.getValue().entrySet())
+            freq.computeIfAbsent(tag.getKey(), k -> new AtomicInteger()).addAndGet(tag.getValue().get());
+        }
+      }
+      return tagsFreqByTopPage;
+    }
+    catch (InterruptedException e) {
+      throw new IOException(e);
+    }
+    catch (ExecutionException e) {
+      if (e.getCause() instanceof IOException) throw (IOException) e.getCause();
+      throw new IOException(e.getCause());
+    }
+    finally {
+      workers.shutdownNow();
+    }
+  }
+
+  private static void reportProgress(int done, int total, AtomicLong lastReport) {
+    long now = System.currentTimeMillis(), last = lastReport.get();
+    if (now - last >= 10000 && lastReport.compareAndSet(last, now))
+      logger.info("Indexed " + done + " of " + total + " pages");
+  }
+
+  private static List<WebPage> pagesToIndex() {
+    List<WebPage> pages = new ArrayList<>();
+    for (WebPage page : WebPage.ROOT.childrenRecursively()) {
+      if (page instanceof WebPage.News && !((WebPage.News) page).isStory()) continue;
+      if ("true".equals(page.metadata.getProperty("hidden", "false"))) continue;
+      pages.add(page);
+    }
+    return pages;
+  }
+
+  private static Document document(WebPage page) {
+    Document doc = new Document();
+    doc.add(new StringField("id", page.path, Field.Store.NO));
+    doc.add(new TextField("path", page.path, Field.Store.YES));
+    doc.add(new TextField("title", page.title, Field.Store.YES));
+    doc.add(new TextField("keywords", page.metadata.getProperty("description", "") + " " + page.metadata.getProperty("keywords", ""), Field.Store.NO));
+    doc.add(new StoredField("description", page.metadata.getProperty("description", "")));
+    doc.add(new LongField("date", page.date().getTime(), Field.Store.YES));
+    doc.add(new NumericDocValuesField(RecencyQuery.DATE_FIELD, page.date().getTime()));
+    doc.add(new StringField(RecencyQuery.SECTION_FIELD, page.topParentName(), Field.Store.YES));
+    for (String parent : parentTitles(page)) doc.add(new StoredField("parent", parent));
+    doc.add(new TextField("tags", page.metadata.getProperty("tags", ""), Field.Store.YES));
+    doc.add(new TextField("text", removeTags(join(page.contentParts().values(), ' ')), Field.Store.NO));
+    return doc;
+  }
+
+  private static Map<String, Map<String, AtomicInteger>> tagsFreq(List<WebPage> pages) {
+    Map<String, Map<String, AtomicInteger>> tagsFreqByTopPage = new HashMap<>();
+    for (WebPage page : pages) calcTagFreq(tagsFreqByTopPage, page, page.metadata.getProperty("tags", ""));
+    return unmodifiableMap(tagsFreqByTopPage);
+  }
+
+  private void setTagsFreq(Map<String, Map<String, AtomicInteger>> tagsFreqByTopPage) {
+    Map<String, List<Map.Entry<String, Float>>> tagClouds = new HashMap<>();
+    for (Map.Entry<String, Map<String, AtomicInteger>> section : tagsFreqByTopPage.entrySet())
+      tagClouds.put(section.getKey(), TagCloud.of(section.getValue()));
+    this.tagsFreqByTopPage = tagsFreqByTopPage;
+    this.tagClouds = unmodifiableMap(tagClouds);
+  }
+
+  /** @return tags of the given top-level page for a tag cloud, see TagCloud, or null if it has no tags */
+  public List<Map.Entry<String, Float>> tagCloud(String topPage) {
+    return tagClouds.get(topPage);
+  }
+
+  /** Tag frequencies are saved with the index, so that they are available right after restart */
+  private static void commit(IndexWriter writer, String head, Map<String, Map<String, AtomicInteger>> tagsFreqByTopPage) throws IOException {
+    Map<String, String> data = new HashMap<>();
+    data.put(FORMAT_KEY, FORMAT_VERSION);
+    if (head != null) data.put(COMMIT_KEY, head);
+    data.put(TAGS_KEY, encodeTagsFreq(tagsFreqByTopPage));
+    writer.setCommitData(data);
+    writer.commit();
+  }
+
+  private Map<String, String> lastCommitData() throws IOException {
+    if (dir == null || !DirectoryReader.indexExists(dir)) return emptyMap();
+    List<IndexCommit> commits = DirectoryReader.listCommits(dir);
+    Map<String, String> data = commits.get(commits.size() - 1).getUserData();
+    return FORMAT_VERSION.equals(data.get(FORMAT_KEY)) ? data : emptyMap();
   }
 
-  private void calcTagFreq(Map<String, Map<String, AtomicInteger>> tagsFreqByTopPage, WebPage page, String tags) {
+  /** @return lines of tab-separated top page, tag and count */
+  static String encodeTagsFreq(Map<String, Map<String, AtomicInteger>> tagsFreqByTopPage) {
+    StringBuilder result = new StringBuilder();
+    for (Map.Entry<String, Map<String, AtomicInteger>> section : tagsFreqByTopPage.entrySet()) {
+      for (Map.Entry<String, AtomicInteger> tag : section.getValue().entrySet()) {
+        if (tag.getKey().indexOf('\t') >= 0 || tag.getKey().indexOf('\n') >= 0) continue;
+        result.append(section.getKey()).append('\t').append(tag.getKey()).append('\t').append(tag.getValue()).append('\n');
+      }
+    }
+    return result.toString();
+  }
+
+  static Map<String, Map<String, AtomicInteger>> decodeTagsFreq(String encoded) {
+    Map<String, Map<String, AtomicInteger>> tagsFreqByTopPage = new HashMap<>();
+    if (encoded == null) return tagsFreqByTopPage;
+    for (String line : split(encoded, '\n')) {
+      String[] parts = line.split("\t");
+      if (parts.length != 3) continue;
+      tagsFreqByTopPage.computeIfAbsent(parts[0], k -> new HashMap<>()).put(parts[1], new AtomicInteger(parseInt(parts[2])));
+    }
+    return unmodifiableMap(tagsFreqByTopPage);
+  }
+
+  /** @return content commit the index was built for or null if unknown or the index has fields of older version */
+  String indexedCommit() throws IOException {
+    return lastCommitData().get(COMMIT_KEY);
+  }
+
+  private static String head() {
+    if (!WebPage.ROOT.dir.child(".git").exists()) return null;
+    try {
+      return Git.head();
+    }
+    catch (IOException | InterruptedException | Git.ExecException e) {
+      logger.warn("Cannot get content HEAD: " + e);
+      return null;
+    }
+  }
+
+  /** @return dir of the page relative to content root, e.g. en/about/ */
+  private static String relativeDir(WebPage page) {
+    Path root = WebPage.ROOT.dir.getRealFile().toPath();
+    return root.relativize(page.dir.getRealFile().toPath()).toString().replace(File.separatorChar, '/') + "/";
+  }
+
+  private static boolean isBelowAny(String dir, Collection<String> parents) {
+    for (String parent : parents) {
+      if (dir.startsWith(parent)) return true;
+    }
+    return false;
+  }
+
+  /** the same as WebPage.parents() for the locale of the page, which doesn't depend on the current request */
+  private static List<String> parentTitles(WebPage page) {
+    List<String> titles = new ArrayList<>();
+    for (WebPage parent = page.parent(); parent != null && parent.level >= 1; parent = parent.parent()) {
+      if (parent.level == 1 && Play.langs.contains(parent.topParentName())) break;
+      titles.add(parent.title);
+    }
+    reverse(titles);
+    return titles;
+  }
+
+  /**
+   * Pages are selected by offset, as doc ids change after reindexing and recency scores change with time,
+   * so that a cursor of the previous page could skip or repeat hits.
+   * @param offset number of hits shown on previous pages
+   */
+  public SearchResults search(String q, int offset, int pageSize) throws IOException {
+    Query query = buildQuery(q);
+    if (query != null) query = RecencyQuery.configured(query);
+    IndexSearcher searcher = acquire();
+    if (searcher == null || query == null) {
+      release(searcher);
+      return new SearchResults(0, emptyList());
+    }
+
+    try {
+      int maxDoc = searcher.getIndexReader().maxDoc();
+      offset = Math.max(0, Math.min(offset, maxDoc));
+      TopDocs topDocs = searcher.search(query, Math.max(1, Math.min(offset + pageSize, maxDoc)));
+      List<SearchHit> hits = new ArrayList<>(pageSize);
+      for (int i = offset; i < topDocs.scoreDocs.length; i++) {
+        hits.add(new SearchHit(searcher.doc(topDocs.scoreDocs[i].doc)));
+      }
+      return new SearchResults(topDocs.totalHits, hits);
+    }
+    finally {
+      release(searcher);
+    }
+  }
+
+  /**
+   * @return searcher of the latest index that must be given back with release() after use, or null if there is no index yet
+   */
+  public IndexSearcher acquire() throws IOException {
+    SearcherManager searchers = this.searchers;
+    return searchers == null ? null : searchers.acquire();
+  }
+
+  public void release(IndexSearcher searcher) throws IOException {
+    if (searcher != null) searchers.release(searcher);
+  }
+
+  /**
+   * Builds a phrase query over all searched fields from analyzed terms of user input,
+   * so that any characters are searched for literally.
+   * @return null if nothing remains to search for, e.g. only stop words were given
+   */
+  Query buildQuery(String q) throws IOException {
+    if (q == null || analyzer == null) return null;
+    BooleanQuery query = new BooleanQuery();
+    for (Map.Entry<String, Float> field : SEARCH_FIELDS.entrySet()) {
+      Query fieldQuery = phraseQuery(field.getKey(), q);
+      if (fieldQuery == null) return null;
+      fieldQuery.setBoost(field.getValue());
+      query.add(fieldQuery, BooleanClause.Occur.SHOULD);
+    }
+    return query;
+  }
+
+  private Query phraseQuery(String field, String text) throws IOException {
+    PhraseQuery phrase = new PhraseQuery();
+    Term lastTerm = null;
+    int terms = 0, position = -1;
+    try (TokenStream tokens = analyzer.tokenStream(field, new StringReader(text))) {
+      CharTermAttribute term = tokens.addAttribute(CharTermAttribute.class);
+      PositionIncrementAttribute positionIncrement = tokens.addAttribute(PositionIncrementAttribute.class);
+      tokens.reset();
+      while (tokens.incrementToken()) {
+        position += positionIncrement.getPositionIncrement();
+        lastTerm = new Term(field, term.toString());
+        phrase.add(lastTerm, position);
+        terms++;
+      }
+      tokens.end();
+    }
+    if (terms == 0) return null;
+    return terms == 1 ? new TermQuery(lastTerm) : phrase;
+  }
+
+  public static class SearchResults {
+    public final int totalHits;
+    public final List<SearchHit> hits;
+
+    SearchResults(int totalHits, List<SearchHit> hits) {
+      this.totalHits = totalHits;
+      this.hits = hits;
+    }
+  }
+
+  private static void calcTagFreq(Map<String, Map<String, AtomicInteger>> tagsFreqByTopPage, WebPage page, String tags) {
     for (String tag : split(tags, ",")) {
       tag = tag.trim();
       String topLevelPage = page.topParentName();
@@ -109,15 +456,8 @@ public class WebPageIndexer {
     }
   }
 
-  private IndexableField withBoost(float boost, TextField field) {
-    field.setBoost(boost);
-    return field;
-  }
-
   private void reopenIndex() throws IOException {
-    if (reader != null) reader.close();
-    reader = DirectoryReader.open(dir);
-    searcher = new IndexSearcher(reader);
-    queryParser = new QueryParser(version, "text", analyzer);
+    if (searchers == null) searchers = new SearcherManager(dir, null);
+    else searchers.maybeRefresh();
   }
 }
@@ -0,0 +1,126 @@
+package models;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import play.vfs.VirtualFile;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Random;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import static java.lang.String.format;
+import static java.util.regex.Pattern.DOTALL;
+import static models.WebPage.ALLOWED_FILE_TYPES;
+import static models.WebPage.ROOT;
+import static org.apache.commons.io.FileUtils.writeByteArrayToFile;
+import static org.junit.Assert.assertEquals;
+import static play.libs.Codec.byteToHexString;
+import static util.UrlEncoder.safeUrlEncode;
+
+public class LinkProcessingTest {
+  private static final Pattern LINK_PATTERN = Pattern.compile("<a([^>]*?)href=\"([^\"]+?)\"([^>]*?)>(\\s*[^<].+?[^>]\\s*)</a>", DOTALL);
+
+  @Rule public TemporaryFolder dir = new TemporaryFolder();
+  WebPage page;
+
+  @Before
+  public void setUp() throws IOException {
+    writeByteArrayToFile(new File(dir.getRoot(), "document.pdf"), new byte[197133]);
+    writeByteArrayToFile(new File(dir.getRoot(), "big.zip"), new byte[2 * 1024 * 1024]);
+    page = new WebPage(VirtualFile.open(dir.getRoot()), "/page");
+  }
+
+  @Test
+  public void sameOutputAsRegexBasedProcessing() {
+    String[] corpus = {
+        "<a href=\"document.pdf\">Document</a>",
+        "<a href=\"document.pdf\">16<sup>th</sup> issue structure</a>",
+        "<a href=\"document.pdf\"><img src=\"something.png\"></a>",
+        "<a href=\"document.pdf\"><img src=\"something.png\"></a> and <a href=\"big.zip\">Zip</a>",
+        "<a href=\"big.zip\">Download</a>",
+        "<a href=\"/page/absolute.zip\">Download</a>",
+        "<a href=\"привет.zip\">Download</a>",
+        "<a href=\"white space.zip\">Download</a>",
+        "<a target=\"_blank\" href=\"document.pdf\" title=\"x\">Document</a>",
+        "<a\thref=\"/about/\">Simple Link</a>",
+        "<a href=\"http://www.something.com/document.pdf\">Simple PDF Link</a>",
+        "<div><a href=\"document.pdf\">Document 1</a> Hello <a href=\"document.pdf\">Document 2</a></div>",
+        "<a class=\"download pdf\" href=\"/page/document.pdf\">Document (PDF, 193 Kb)</a>",
+        "<a href=\"/map?branch=Центральный\">Центральный</a>",
+        "<a href=\"mailto:somebody@example.com\">somebody@example.com</a>",
+        "<a\nhref=\"mailto:somebody@example.com\">Ivan\nExamploff</a>",
+        "<a href=\"\">empty</a><a href=\"x.pdf\">ok</a>",
+        "<a href=\"a>b.pdf\">gt in href</a>",
+        "<a name=\"x\" href=\"\" href=\"document.pdf\">second href</a>",
+        "<a href=\"document.pdf\">ab</a> <a href=\"document.pdf\">  </a> text</a>",
+        "<a href=\"document.pdf\">   <b>bold</b></a>",
+        "<a href=\"document.pdf\">text<br></a> tail</a>",
+        "<a href=\"document.pdf\">unclosed <a href=\"big.zip\">Zip</a>",
+        "<abbr title=\"x\" href=\"document.pdf\">abbr</abbr></a>",
+        "<a href=\"document.pdf\">no end",
+        "\uFEFF<a href=\"document.pdf\">BOM</a>",
+        "plain text without links",
+        ""
+    };
+    for (String content : corpus) {
+      assertEquals(content, regexProcessContent(page, content), page.processContent(content));
+    }
+  }
+
+  @Test
+  public void sameOutputAsRegexBasedProcessingOnRandomContent() {
+    String[] tokens = {"<a href=\"document.pdf\">", "<a href=\"\">", "<a", " href=\"", "href=\"", "\"", ">", "</a>", "<", "a", " ", "\n",
+        "big.zip", "http://x.com/", "mailto:a@b.c", "a@b.c", " class=\"c\"", "<img src=\"i.png\">", "/", "Text", "</a", "x>", "привет"};
+    Random random = new Random(1);
+    for (int i = 0; i < 20000; i++) {
+      StringBuilder content = new StringBuilder();
+      for (int j = random.nextInt(30); j >= 0; j--) content.append(tokens[random.nextInt(tokens.length)]);
+      assertEquals(content.toString(), regexProcessContent(page, content.toString()), page.processContent(content.toString()));
+    }
+  }
+
+  @Test
+  public void dollarsAndBackslashesInLinksAreKeptAsIs() {
+    assertEquals("<a class=\"external\" href=\"http://x.com/?a=$1\">Price: 5$ \\o/</a>",
+        page.processContent("<a href=\"http://x.com/?a=$1\">Price: 5$ \\o/</a>"));
+  }
+
+  /** processContent as it was implemented with LINK_PATTERN */
+  private static String regexProcessContent(WebPage page, String content) {
+    content = WebPage.removeBOM(content);
+    Matcher m = LINK_PATTERN.matcher(content);
+    StringBuffer result = new StringBuffer();
+    while (m.find()) {
+      String filename = m.group(2);
+      String filetype = filename.substring(filename.lastIndexOf('.') + 1);
+      if (m.group(1).contains("class=") || m.group(3).contains("class=")) {
+        m.appendReplacement(result, m.group());
+      }
+      else if (filename.startsWith("http")) {
+        m.appendReplacement(result, "<a$1class=\"external\" href=\"$2\"$3>$4</a>");
+      }
+      else if (filename.startsWith("mailto:")) {
+        String email = m.group(2).replace("mailto:", "");
+        String href = byteToHexString(email.getBytes());
+        String text = m.group(4);
+        if (text.equals(email)) text = href;
+        m.appendReplacement(result, "<a$1class=\"email\" href=\"cryptmail:" + href + "\"$3>" + text + "</a>");
+      }
+      else if (filename.contains("://") || !ALLOWED_FILE_TYPES.contains(filetype))
+        m.appendReplacement(result, "<a$1href=\"" + safeUrlEncode(m.group(2)) + "\"$3>$4</a>");
+      else {
+        VirtualFile file = (filename.startsWith("/") ? ROOT.dir : page.dir).child(filename);
+        double lengthKb = file.length() / 1024.0;
+        String size = lengthKb > 1024 ? format("%.1f Mb", lengthKb / 1024) : format("%.0f Kb", lengthKb);
+        m.appendReplacement(result, "<a$1class=\"download " + filetype + (file.exists() ? "" : " unavailable") + "\" href=\"" + (filename.startsWith("/") ? "" : page.path) + safeUrlEncode(m.group(2)) + "\"$3>" +
+            "$4 (" + filetype.toUpperCase() + ", " + size + ")</a>");
+      }
+    }
+    m.appendTail(result);
+    return result.toString();
+  }
+}
@@ -0,0 +1,95 @@
+package models;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import play.Play;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+
+import static org.apache.commons.io.FileUtils.writeStringToFile;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+
+public class NewsIndexTest {
+  @Rule public TemporaryFolder content = new TemporaryFolder();
+  private WebPage originalRoot;
+  private NewsIndex index;
+
+  @Before
+  public void setUp() throws IOException {
+    originalRoot = WebPage.ROOT;
+    Play.configuration.clear();
+    Play.applicationPath = null;
+    Play.configuration.setProperty("web.content", content.getRoot().getPath());
+
+    page("news", "template: news");
+    page("news/2012/12/31", "title: Old\ntags: bank");
+    page("news/2013/05/10", "title: First\ntags: bank, cards");
+    page("news/2013/05/10-1", "title: Second\ntags: cards");
+    page("news/2013/06/01", "title: Summer\ntags: bankruptcy");
+    page("news/2013/06/02", "title: Hidden\nhidden: true");
+
+    WebPage.ROOT = new WebPage();
+    WebPageTree.reload();
+    index = ((WebPage.News) WebPage.forPath("/news/2013/")).newsIndex();
+  }
+
+  @After
+  public void tearDown() {
+    WebPage.ROOT = originalRoot;
+  }
+
+  @Test
+  public void indexIsBuiltOncePerSection() {
+    assertSame(index, ((WebPage.News) WebPage.forPath("/news/")).newsIndex());
+    assertEquals("/news/", index.rootPath);
+  }
+
+  @Test
+  public void latestNewsFirst() {
+    assertPaths(index.latest("/news/", null, null, 3), "/news/2013/06/01/", "/news/2013/05/10-1/", "/news/2013/05/10/");
+    assertEquals(4, index.count("/news/", null, null));
+    assertPaths(index.latest("/news/2012/", null, null, 30), "/news/2012/12/31/");
+  }
+
+  @Test
+  public void newsAreFilteredByExactTag() {
+    assertPaths(index.latest("/news/", "bank", null, 30), "/news/2013/05/10/", "/news/2012/12/31/");
+    assertPaths(index.latest("/news/", "cards", null, 30), "/news/2013/05/10-1/", "/news/2013/05/10/");
+    assertEquals(0, index.count("/news/", "unknown", null));
+  }
+
+  @Test
+  public void pagesStartAfterCursor() {
+    assertPaths(index.latest("/news/", null, "/news/2013/05/10-1/", 30), "/news/2013/05/10/", "/news/2012/12/31/");
+    assertPaths(index.latest("/news/", "bank", "/news/2013/05/10-1/", 30), "/news/2013/05/10/", "/news/2012/12/31/");
+    assertEquals(1, index.count("/news/", null, "/news/2013/05/10"));
+  }
+
+  @Test
+  public void archiveCountsNewsPerYearAndMonth() {
+    assertEquals("{2013=3, 2013/06=1, 2013/05=2, 2012=1, 2012/12=1}", index.archive("/news/", null).toString());
+  }
+
+  @Test
+  public void tagsAreCountedPerArchivePage() {
+    assertEquals(2, index.tagCounts("/news/2013/05/").get("cards").intValue());
+    assertEquals(1, index.tagCounts("/news/2013/05/").get("bank").intValue());
+    assertEquals(null, index.tagCounts("/news/2013/05/").get("bankruptcy"));
+    assertSame(index.tagCloud("/news/2013/"), index.tagCloud("/news/2013/"));
+  }
+
+  private static void assertPaths(List<WebPage> pages, String... paths) {
+    assertEquals(paths.length, pages.size());
+    for (int i = 0; i < paths.length; i++) assertEquals(paths[i], pages.get(i).path);
+  }
+
+  private void page(String path, String metadata) throws IOException {
+    writeStringToFile(new File(content.getRoot(), path + "/metadata.properties"), metadata, "UTF-8");
+  }
+}
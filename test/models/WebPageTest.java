@@ -175,7 +175,7 @@ public class WebPageTest {
 
   @Test
   public void dateForNews() throws ParseException {
-    WebPage.News.pathPrefixes = asList("/news");
+    WebPage.News.setPathPrefixes(asList("/news"));
     WebPage.News news = WebPage.forPath("/news");
 
     news.path = "/hello/news/2013/05/13/";
@@ -211,7 +211,7 @@ public class WebPageTest {
 
   @Test
   public void dateForNewsWithExtraDashesInPath() throws ParseException{
-    WebPage.News.pathPrefixes = asList("/news");
+    WebPage.News.setPathPrefixes(asList("/news"));
     WebPage.News news = WebPage.forPath("/news");
 
     news.path = "/a-and-b/c-or-d/2012/05/10-1-1-1/";
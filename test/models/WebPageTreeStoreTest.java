@@ -0,0 +1,112 @@
+package models;
+
+import com.google.common.collect.ImmutableMap;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import play.Play;
+import util.Git;
+
+import java.io.*;
+import java.util.*;
+
+import static java.util.Arrays.asList;
+import static org.apache.commons.io.FileUtils.writeStringToFile;
+import static org.junit.Assert.*;
+
+public class WebPageTreeStoreTest {
+  @Rule public TemporaryFolder content = new TemporaryFolder();
+  @Rule public TemporaryFolder tmp = new TemporaryFolder();
+  private WebPage originalRoot;
+
+  @Before
+  public void setUp() throws IOException {
+    originalRoot = WebPage.ROOT;
+    Play.configuration.clear();
+    Play.applicationPath = null;
+    Play.configuration.setProperty("web.content", content.getRoot().getPath());
+    writeStringToFile(new File(content.getRoot(), "en/metadata.properties"), "title: English\nalias: /english", "UTF-8");
+    writeStringToFile(new File(content.getRoot(), "en/news/metadata.properties"), "template: news", "UTF-8");
+    new File(content.getRoot(), "en/news/2013/05").mkdirs();
+    WebPage.ROOT = new WebPage();
+  }
+
+  @After
+  public void tearDown() {
+    WebPage.ROOT = originalRoot;
+  }
+
+  @Test
+  public void pagesCanBeRestoredWithoutScanning() throws IOException {
+    WebPageTree tree = WebPageTree.reload();
+    File file = new File(content.getRoot(), "web-tree.bin");
+    try (DataOutputStream out = new DataOutputStream(new FileOutputStream(file))) {
+      WebPageTreeStore.write(out, tree, "abc123", ImmutableMap.of("en/new/content.html", "??"));
+    }
+
+    List<WebPage> pages = new ArrayList<>();
+    Map<String, String> uncommitted = new HashMap<>();
+    assertEquals("abc123", WebPageTreeStore.read(file, pages, uncommitted));
+    assertEquals(4, pages.size());
+    assertEquals(ImmutableMap.of("en/new/content.html", "??"), uncommitted);
+
+    WebPageTree.restore(pages);
+    WebPage en = WebPage.forPath("/en/");
+    assertEquals("English", en.title);
+    assertEquals("/english", en.metadata.getProperty("alias"));
+    assertEquals(new File(content.getRoot(), "en").lastModified(), en.date().getTime());
+    assertTrue(WebPage.forPath("/en/news/2013/05/") instanceof WebPage.News);
+    assertEquals(asList(WebPage.forPath("/en/news/2013/")), WebPage.forPath("/en/news/").children());
+  }
+
+  @Test
+  public void snapshotOfAnotherContentDirIsIgnored() throws IOException {
+    WebPageTree tree = WebPageTree.reload();
+    File file = new File(content.getRoot(), "web-tree.bin");
+    try (DataOutputStream out = new DataOutputStream(new FileOutputStream(file))) {
+      WebPageTreeStore.write(out, tree, "abc123", ImmutableMap.of("en/new/content.html", "??"));
+    }
+
+    WebPage.ROOT = originalRoot;
+    assertNull(WebPageTreeStore.read(file, new ArrayList<>(), new HashMap<>()));
+  }
+
+  @Test
+  public void uncommittedChangesAreRescannedOnRestore() throws Exception {
+    File originalTmpDir = Play.tmpDir;
+    Play.tmpDir = tmp.getRoot();
+    try {
+      Git.exec("git", "init", "-q");
+      Git.git("add", ".");
+      Git.git("-c", "user.name=test", "-c", "user.email=test@example.com", "commit", "-q", "-m", "first");
+      writeStringToFile(new File(content.getRoot(), "en/about/metadata.properties"), "title: About", "UTF-8");
+      WebPageTree.reload();
+      WebPageTreeStore.save();
+
+      new File(content.getRoot(), "en/about/metadata.properties").delete();
+      writeStringToFile(new File(content.getRoot(), "en/metadata.properties"), "title: Changed", "UTF-8");
+      writeStringToFile(new File(content.getRoot(), "en/contacts/metadata.properties"), "title: Contacts", "UTF-8");
+      WebPageTreeStore.restoreOrScan();
+
+      assertEquals("Changed", WebPage.forPath("/en/").title);
+      assertFalse(WebPage.forPath("/en/about/").hasMetadata());
+      assertEquals("Contacts", WebPage.forPath("/en/contacts/").title);
+    }
+    finally {
+      Git.close();
+      Play.tmpDir = originalTmpDir;
+    }
+  }
+
+  @Test
+  public void onlyDirsWithAddedOrDeletedFilesOrChangedMetadataAreRescanned() {
+    assertEquals(new HashSet<>(asList("/en/about/", "/en/news/2013/05/01/", "/en/old/")), WebPageTreeStore.changedDirs(ImmutableMap.of(
+        "en/about/metadata.properties", "M",
+        "en/contacts/content.html", "M",
+        "en/news/2013/05/01/content.html", "A",
+        "en/old/photo.jpg", "D",
+        "robots.txt", "A")));
+  }
+}
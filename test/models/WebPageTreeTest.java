@@ -0,0 +1,141 @@
+package models;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import play.Play;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+
+import static org.apache.commons.io.FileUtils.writeStringToFile;
+import static org.junit.Assert.*;
+
+public class WebPageTreeTest {
+  @Rule public TemporaryFolder content = new TemporaryFolder();
+  private WebPage originalRoot;
+
+  @Before
+  public void setUp() throws IOException {
+    originalRoot = WebPage.ROOT;
+    Play.configuration.clear();
+    Play.applicationPath = null;
+    Play.configuration.setProperty("web.content", content.getRoot().getPath());
+
+    page("en", "title: English");
+    page("en/about", "order: 2");
+    page("en/about/team", "title: Team");
+    page("en/contacts", "order: 1");
+    page("en/linked", "contentFrom: /en/about");
+    page("en/news", "template: news");
+    page("en/news/2013/05/13", "title: Story");
+    new File(content.getRoot(), "en/nometadata").mkdirs();
+    page("en/.hidden", "title: Hidden");
+
+    WebPage.ROOT = new WebPage();
+    WebPageTree.reload();
+  }
+
+  @After
+  public void tearDown() {
+    WebPage.ROOT = originalRoot;
+  }
+
+  @Test
+  public void pagesAreLoadedOnlyOnce() {
+    assertSame(WebPage.forPath("/en/about"), WebPage.forPath("/en/about/"));
+    assertSame(WebPage.forPath("/en/about/"), WebPage.forPath("/en/about/team/").parent());
+  }
+
+  @Test
+  public void childrenAreSortedByOrder() {
+    List<WebPage> children = WebPage.forPath("/en/").children();
+    assertEquals("/en/contacts/", children.get(0).path);
+    assertEquals("/en/about/", children.get(1).path);
+    assertEquals(4, children.size());
+  }
+
+  @Test
+  public void childrenOfContentFromAreLinked() {
+    List<WebPage> children = WebPage.forPath("/en/linked/").children();
+    assertEquals(1, children.size());
+    assertEquals("/en/linked/team/", children.get(0).path);
+    assertEquals(2, children.get(0).level);
+    assertEquals(WebPage.forPath("/en/about/team/").dir, WebPage.forPath("/en/linked/team/").dir);
+  }
+
+  @Test
+  public void newsAreDetectedByTemplate() {
+    assertTrue(WebPage.forPath("/en/news/") instanceof WebPage.News);
+    assertTrue(WebPage.forPath("/en/news/2013/05/13/") instanceof WebPage.News);
+    assertFalse(WebPage.forPath("/en/about/") instanceof WebPage.News);
+  }
+
+  @Test
+  public void unknownPathsAreLoadedFromDisk() {
+    WebPage page = WebPage.forPath("/en/nometadata/");
+    assertFalse(page.hasMetadata());
+    assertNotSame(page, WebPage.forPath("/en/nometadata/"));
+  }
+
+  @Test
+  public void refreshReplacesOnlyChangedPages() throws IOException {
+    WebPage contacts = WebPage.forPath("/en/contacts/");
+    page("en/about/history", "title: History");
+    page("en/about", "order: 3");
+
+    WebPageTree.refresh("/en/about/");
+
+    assertSame(contacts, WebPage.forPath("/en/contacts/"));
+    assertEquals(3, WebPage.forPath("/en/about/").order);
+    assertEquals(2, WebPage.forPath("/en/about/").children().size());
+    assertEquals(2, WebPage.forPath("/en/linked/").children().size());
+  }
+
+  @Test
+  public void refreshRemovesDeletedPages() {
+    new File(content.getRoot(), "en/about/team/metadata.properties").delete();
+    WebPageTree.refresh("/en/about/team/");
+    assertTrue(WebPage.forPath("/en/about/").children().isEmpty());
+    assertFalse(WebPage.forPath("/en/about/team/").hasMetadata());
+  }
+
+  @Test
+  public void childrenOfPagesMissingInSnapshotDoNotChangeSharedPages() throws IOException {
+    page("en/contacts/linked", "contentFrom: /en/about");
+    List<WebPage> children = WebPage.forPath("/en/contacts/linked/").children();
+    assertEquals("/en/contacts/linked/team/", children.get(0).path);
+    assertEquals("/en/about/team/", WebPage.forPath("/en/about/team/").path);
+  }
+
+  @Test
+  public void templateOfContentFromIsResolvedInSnapshot() throws IOException {
+    page("en/contacts/latest", "contentFrom: /en/news");
+    WebPageTree.refresh("/en/contacts/latest/");
+
+    WebPage latest = WebPage.forPath("/en/contacts/latest/");
+    assertEquals("news", latest.template);
+    latest.contentParts();
+    assertEquals("news", WebPage.forPath("/en/contacts/latest/").template);
+    assertEquals("custom", WebPage.forPath("/en/about/").template);
+  }
+
+  @Test
+  public void newsIndexIsReusedForUnchangedSections() throws IOException {
+    NewsIndex index = WebPageTree.current().newsIndex(WebPage.forPath("/en/news/"));
+    page("en/about", "order: 3");
+    WebPageTree.refresh("/en/about/");
+    assertSame(index, WebPageTree.current().newsIndex(WebPage.forPath("/en/news/")));
+
+    page("en/news/2013/05/14", "title: Another story");
+    WebPageTree.refresh("/en/news/2013/05/14/");
+    assertNotSame(index, WebPageTree.current().newsIndex(WebPage.forPath("/en/news/")));
+  }
+
+  private void page(String path, String metadata) throws IOException {
+    writeStringToFile(new File(content.getRoot(), path + "/metadata.properties"), metadata, "UTF-8");
+  }
+}
@@ -0,0 +1,81 @@
+package plugins;
+
+import com.google.common.collect.ImmutableMap;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import play.Play;
+
+import java.util.Map;
+
+import static java.util.Arrays.asList;
+import static java.util.Collections.emptyMap;
+import static org.junit.Assert.*;
+
+public class ContentRouteTest {
+  ContentRoute route = new ContentRoute();
+
+  @Before
+  public void setUp() {
+    Play.configuration.setProperty("web.cacheEnabled", "true");
+    route.update(asList("/en/", "/ru/"), asList("/en/news/"), ImmutableMap.of("/promo", "/en/promo/", "en/old", "/en/new/"));
+  }
+
+  @After
+  public void tearDown() {
+    Play.configuration.remove("web.cacheEnabled");
+  }
+
+  @Test
+  public void topPagesAreCachedAndSubpagesAreNot() {
+    assertEquals("Web.serveContentCached", action("/en/"));
+    assertEquals("Web.serveContent", action("/en"));
+    assertEquals("Web.serveContent", action("/en/about/team/"));
+    assertEquals("Web.serveContent", action("/ru/about"));
+  }
+
+  @Test
+  public void pathsOutsideOfPagesAreNotRouted() {
+    assertTrue(route.resolve("/").isEmpty());
+    assertTrue(route.resolve("/english/").isEmpty());
+    assertTrue(route.resolve("/et/about/").isEmpty());
+    assertNull(route.matches("GET", "/english/", null, null));
+  }
+
+  @Test
+  public void newsPagesTakePrecedence() {
+    assertEquals("Web.news", action("/en/news/"));
+    assertEquals("Web.news", action("/en/news/2013/10/"));
+    assertEquals("Web.serveContent", action("/en/news"));
+    assertEquals("Web.serveContent", action("/en/newsletter/"));
+  }
+
+  @Test
+  public void aliasesRedirectOnlyIfNoPageMatches() {
+    Map<String, String> args = route.resolve("/promo/");
+    assertEquals("Web.redirectAlias", args.get("action"));
+    assertEquals("/en/promo/", args.get("path"));
+    assertEquals("/en/promo/", route.resolve("/promo").get("path"));
+    assertTrue(route.resolve("/promo/more").isEmpty());
+    assertEquals("Web.serveContent", action("/en/old"));
+  }
+
+  @Test
+  public void matchesOnlyGetRequests() {
+    Map<String, String> args = route.matches("HEAD", "/en/news/", null, null);
+    assertEquals("news", args.get("webAction"));
+    assertNull(route.matches("POST", "/en/news/", null, null));
+  }
+
+  @Test
+  public void updateReplacesAllRoutes() {
+    route.update(asList("/et/"), asList(), emptyMap());
+    assertEquals("Web.serveContentCached", action("/et/"));
+    assertTrue(route.resolve("/en/news/").isEmpty());
+    assertTrue(route.resolve("/promo").isEmpty());
+  }
+
+  private String action(String path) {
+    return route.resolve(path).get("action");
+  }
+}
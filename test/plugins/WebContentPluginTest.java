@@ -55,7 +55,7 @@ public class WebContentPluginTest {
 
   @Test
   public void contentMustNotBeCachedByDefault() {
-    plugin.addWebRoutes(pages);
+    plugin.updateRoutes(pages, pages);
     assertNonCached("/en/marketing/");
     assertNonCached("/ru/marketing/2013/10/31/");
   }
@@ -63,7 +63,7 @@ public class WebContentPluginTest {
   @Test
   public void rootPagesAreCachedInProd() {
     Play.mode = PROD;
-    plugin.addWebRoutes(pages);
+    plugin.updateRoutes(pages, pages);
     assertCached("/en/marketing/");
     assertCached("/ru/marketing/");
     assertNonCached("/ru/marketing/2013/10/31/");
@@ -72,7 +72,7 @@ public class WebContentPluginTest {
   @Test
   public void cachingCanBeEnabledInConfiguration() {
     Play.configuration.setProperty("web.cacheEnabled", "true");
-    plugin.addWebRoutes(pages);
+    plugin.updateRoutes(pages, pages);
     assertCached("/en/marketing/");
     assertCached("/ru/marketing/");
     assertNonCached("/ru/marketing/2013/10/31/");
@@ -82,7 +82,7 @@ public class WebContentPluginTest {
   public void cachingCanBeDisabledEvenInProdMode() {
     Play.mode = PROD;
     Play.configuration.setProperty("web.cacheEnabled", "false");
-    plugin.addWebRoutes(pages);
+    plugin.updateRoutes(pages, pages);
     assertNonCached("/en/marketing/");
     assertNonCached("/ru/marketing/2013/10/31/");
   }
@@ -131,10 +131,10 @@ public class WebContentPluginTest {
   }
 
   private void assertCached(String url) {
-    assertEquals("Web.serveContentCached", Router.route("GET", url).get("action"));
+    assertEquals("Web.serveContentCached", WebContentPlugin.route(url).get("action"));
   }
 
   private void assertNonCached(String url) {
-    assertEquals("Web.serveContent", Router.route("GET", url).get("action"));
+    assertEquals("Web.serveContent", WebContentPlugin.route(url).get("action"));
   }
 }
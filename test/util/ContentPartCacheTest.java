@@ -0,0 +1,67 @@
+package util;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import play.vfs.VirtualFile;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.apache.commons.io.FileUtils.writeStringToFile;
+import static org.junit.Assert.assertEquals;
+
+public class ContentPartCacheTest {
+  @Rule public TemporaryFolder dir = new TemporaryFolder();
+  AtomicInteger loads = new AtomicInteger();
+
+  @Test
+  public void partIsProcessedOnlyOnceWhileFileIsNotChanged() throws IOException {
+    VirtualFile file = file("content.html", "Hello");
+    long hits = ContentPartCache.stats().hitCount();
+
+    assertEquals("processed 1", ContentPartCache.get("/page/", file, false, this::process));
+    assertEquals("processed 1", ContentPartCache.get("/page/", file, false, this::process));
+
+    assertEquals(1, loads.get());
+    assertEquals(hits + 1, ContentPartCache.stats().hitCount());
+  }
+
+  @Test
+  public void partIsProcessedAgainWhenFileChanges() throws IOException {
+    VirtualFile file = file("content.html", "Hello");
+    assertEquals("processed 1", ContentPartCache.get("/page/", file, false, this::process));
+
+    writeStringToFile(file.getRealFile(), "Hello, world", "UTF-8");
+    assertEquals("processed 2", ContentPartCache.get("/page/", file, false, this::process));
+  }
+
+  @Test
+  public void partsAreProcessedSeparatelyForEveryPageAndLinking() throws IOException {
+    VirtualFile file = file("content.html", "Hello");
+    ContentPartCache.get("/page/", file, false, this::process);
+    ContentPartCache.get("/page/", file, true, this::process);
+    ContentPartCache.get("/other/", file, false, this::process);
+    assertEquals(3, loads.get());
+  }
+
+  @Test
+  public void partsOfPageCanBeInvalidated() throws IOException {
+    VirtualFile file = file("content.html", "Hello");
+    ContentPartCache.get("/page/", file, false, this::process);
+    ContentPartCache.invalidate("/page/");
+    ContentPartCache.get("/page/", file, false, this::process);
+    assertEquals(2, loads.get());
+  }
+
+  private String process() {
+    return "processed " + loads.incrementAndGet();
+  }
+
+  private VirtualFile file(String name, String content) throws IOException {
+    File file = new File(dir.getRoot(), name);
+    writeStringToFile(file, content, "UTF-8");
+    return VirtualFile.open(file);
+  }
+}
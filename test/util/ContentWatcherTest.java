@@ -0,0 +1,99 @@
+package util;
+
+import org.junit.After;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+
+import static java.util.Arrays.asList;
+import static java.util.concurrent.TimeUnit.SECONDS;
+import static org.apache.commons.io.FileUtils.writeStringToFile;
+import static org.junit.Assert.*;
+
+public class ContentWatcherTest {
+  @Rule public TemporaryFolder dir = new TemporaryFolder();
+  BlockingQueue<Set<String>> changes = new LinkedBlockingQueue<>();
+  ContentWatcher watcher;
+
+  @After
+  public void tearDown() {
+    if (watcher != null) watcher.close();
+  }
+
+  @Test
+  public void reportsChangesInSubdirs() throws Exception {
+    write("en/about/content.html");
+    watch(false);
+    write("en/about/content.html", "changed");
+    assertEquals(paths("/en/about/content.html"), nextChanges());
+  }
+
+  @Test
+  public void reportsFilesOfNewDirs() throws Exception {
+    watch(false);
+    write("en/news/2013/metadata.properties");
+    Set<String> changed = nextChanges();
+    assertTrue(changed.toString(), changed.containsAll(asList("/en", "/en/news/2013/metadata.properties")));
+  }
+
+  @Test
+  public void pollingReportsAddedChangedAndDeletedFiles() throws Exception {
+    write("en/about/content.html");
+    write("en/old/content.html");
+    watch(true);
+
+    write("en/about/content.html", "changed content");
+    write("en/new/content.html");
+    new File(dir.getRoot(), "en/old/content.html").delete();
+    new File(dir.getRoot(), "en/old").delete();
+
+    assertEquals(paths("/en/about/content.html", "/en/new", "/en/new/content.html", "/en/old", "/en/old/content.html"), nextChanges());
+  }
+
+  @Test
+  public void changesAreDebouncedIntoOneBatch() throws Exception {
+    watch(true);
+    write("a.html");
+    Thread.sleep(100);
+    write("b.html");
+    assertEquals(paths("/a.html", "/b.html"), nextChanges());
+    assertNull(changes.poll(1, SECONDS));
+  }
+
+  @Test
+  public void hiddenFilesAreIgnored() throws Exception {
+    watch(false);
+    write(".git/index");
+    write("page/content.html");
+    assertEquals(paths("/page", "/page/content.html"), nextChanges());
+  }
+
+  private void watch(boolean poll) throws IOException {
+    watcher = new ContentWatcher(dir.getRoot(), poll, 200, 200, changes::add);
+  }
+
+  private Set<String> nextChanges() throws InterruptedException {
+    Set<String> changed = changes.poll(10, SECONDS);
+    assertNotNull("no changes reported", changed);
+    return changed;
+  }
+
+  private void write(String path) throws IOException {
+    write(path, "content");
+  }
+
+  private void write(String path, String content) throws IOException {
+    writeStringToFile(new File(dir.getRoot(), path), content, "UTF-8");
+  }
+
+  private static Set<String> paths(String... paths) {
+    return new TreeSet<>(asList(paths));
+  }
+}
@@ -0,0 +1,47 @@
+package util;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static java.util.Arrays.asList;
+import static org.junit.Assert.*;
+
+public class GitRecordsTest {
+  GitRecords<String> records = new GitRecords<>();
+
+  @Test
+  public void recordsAreSplitByDelimiter() throws IOException {
+    assertTrue(GitRecords.read(input("a\0bb\0ccc"), '\0', 10, 1000, records, this::add));
+    assertEquals(asList("a", "bb", "ccc"), records);
+    assertFalse(records.truncated);
+  }
+
+  @Test
+  public void readingStopsAfterMaxRecords() throws IOException {
+    assertFalse(GitRecords.read(input("a\0b\0c\0d\0"), '\0', 2, 1000, records, this::add));
+    assertEquals(asList("a", "b"), records);
+    assertTrue(records.truncated);
+  }
+
+  @Test
+  public void readingStopsAfterMaxBytes() throws IOException {
+    StringBuilder output = new StringBuilder();
+    for (int i = 0; i < 10000; i++) output.append("line ").append(i).append('\n');
+    assertFalse(GitRecords.read(input(output.toString()), '\n', 100000, 20000, records, this::add));
+    assertTrue(records.truncated);
+    assertTrue(records.size() < 10000);
+    assertEquals("line 0", records.get(0));
+  }
+
+  private void add(String record, GitRecords<String> records) {
+    records.add(record);
+  }
+
+  private static InputStream input(String s) {
+    return new ByteArrayInputStream(s.getBytes(UTF_8));
+  }
+}
@@ -0,0 +1,220 @@
+package util;
+
+import models.WebPage;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import play.Play;
+
+import java.io.File;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.*;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static java.nio.file.attribute.PosixFilePermission.GROUP_WRITE;
+import static java.nio.file.attribute.PosixFilePermissions.fromString;
+import static java.util.Arrays.asList;
+import static org.apache.commons.io.FileUtils.writeStringToFile;
+import static org.apache.commons.io.IOUtils.toString;
+import static org.junit.Assert.*;
+
+public class GitTest {
+  @Rule public TemporaryFolder content = new TemporaryFolder();
+  private WebPage originalRoot;
+
+  @Before
+  public void setUp() throws Exception {
+    originalRoot = WebPage.ROOT;
+    Play.configuration.clear();
+    Play.applicationPath = null;
+    Play.configuration.setProperty("web.content", content.getRoot().getPath());
+    WebPage.ROOT = new WebPage();
+
+    writeStringToFile(new File(content.getRoot(), "en/content.html"), "Hello", "UTF-8");
+    Git.exec("git", "init", "-q");
+    Git.git("add", ".");
+    Git.git("-c", "user.name=test", "-c", "user.email=test@example.com", "commit", "-q", "-m", "first");
+  }
+
+  @After
+  public void tearDown() {
+    Git.close();
+    WebPage.ROOT = originalRoot;
+  }
+
+  @Test
+  public void filesOfRevisionsAreReadByLongLivedProcess() throws Exception {
+    writeStringToFile(new File(content.getRoot(), "en/content.html"), "Changed", "UTF-8");
+    assertEquals("Hello", new String(Git.show("HEAD", "en/content.html"), UTF_8));
+    assertEquals("Hello", new String(Git.show("HEAD", "en/content.html"), UTF_8));
+    assertEquals(5, Git.size("HEAD", "en/content.html"));
+    assertNull(Git.show("HEAD", "en/missing.html"));
+    assertEquals(-1, Git.size("HEAD", "en/missing.html"));
+  }
+
+  @Test
+  public void filesOfRevisionsAreStreamed() throws Exception {
+    try (Git.Blob blob = Git.open("HEAD", "en/content.html")) {
+      assertEquals(5, blob.size);
+      assertEquals('H', blob.read());
+    }
+    assertNull(Git.open("HEAD", "en/missing.html"));
+
+    Git.Blob blob = Git.open("HEAD", "en/content.html");
+    assertEquals("Hello", toString(blob, UTF_8));
+    Thread closer = new Thread(blob::close);
+    closer.start();
+    closer.join();
+    assertEquals("Hello", new String(Git.show("HEAD", "en/content.html"), UTF_8));
+  }
+
+  @Test
+  public void readOnlyCommandsRunInParallel() throws Exception {
+    ExecutorService threads = Executors.newFixedThreadPool(4);
+    try {
+      Future<String> log = threads.submit(() -> Git.git("log", "--pretty=format:%s"));
+      Future<String> head = threads.submit(Git::head);
+      assertEquals("first", log.get(10, TimeUnit.SECONDS));
+      assertEquals(40, head.get(10, TimeUnit.SECONDS).length());
+    }
+    finally {
+      threads.shutdown();
+    }
+  }
+
+  @Test
+  public void logStatusAndDiffAreParsed() throws Exception {
+    writeStringToFile(new File(content.getRoot(), "en/content.html"), "Hello\nWorld", "UTF-8");
+    writeStringToFile(new File(content.getRoot(), "ru/content.html"), "Привет", "UTF-8");
+    Git.git("add", ".");
+
+    GitRecords<Git.FileStatus> status = Git.status();
+    assertEquals(2, status.size());
+    assertEquals("M", status.get(0).code);
+    assertEquals("en/content.html", status.get(0).path);
+    assertEquals("A", status.get(1).code);
+    assertEquals("ru/content.html", status.get(1).path);
+
+    GitRecords<Git.FileDiff> diff = Git.diff("HEAD");
+    assertEquals(2, diff.size());
+    assertEquals("en/content.html", diff.get(0).path);
+    assertFalse(diff.get(0).newFile);
+    assertTrue(diff.get(0).text(), diff.get(0).text().contains("\n+World"));
+    assertTrue(diff.get(1).newFile);
+    assertTrue(diff.get(1).text().contains("\n+Привет"));
+    assertFalse(diff.truncated);
+
+    GitRecords<Git.Commit> log = Git.log("--max-count=50");
+    assertEquals(1, log.size());
+    assertEquals("first", log.get(0).subject);
+    assertEquals("test", log.get(0).author);
+    assertEquals("test@example.com", log.get(0).email);
+  }
+
+  @Test
+  public void renamedFilesHaveOriginalPath() {
+    GitRecords<Git.FileStatus> statuses = new GitRecords<>();
+    Git.parseStatus("R  en/new.html", statuses);
+    Git.parseStatus("en/old.html", statuses);
+    Git.parseStatus(" M en/content.html", statuses);
+    Git.parseStatus("R  a/c", statuses);
+    Git.parseStatus("a/b", statuses);
+    Git.parseStatus("?? x/y", statuses);
+    assertEquals(4, statuses.size());
+    assertEquals("en/new.html", statuses.get(0).path);
+    assertEquals("en/old.html", statuses.get(0).origPath);
+    assertEquals("M", statuses.get(1).code);
+    assertEquals("a/b", statuses.get(2).origPath);
+    assertEquals("x/y", statuses.get(3).path);
+  }
+
+  @Test
+  public void errorsOfStreamedCommandsAreReported() throws Exception {
+    try {
+      Git.log("missing-revision");
+      fail();
+    }
+    catch (Git.ExecException e) {
+      assertTrue(e.getMessage(), e.getMessage().contains("missing-revision"));
+    }
+  }
+
+  @Test
+  public void permissionsAreFixedOnlyForChangedPaths() throws Exception {
+    File changed = new File(content.getRoot(), "en/news/content.html"), unchanged = new File(content.getRoot(), "ru/content.html");
+    writeStringToFile(changed, "News", "UTF-8");
+    writeStringToFile(unchanged, "Привет", "UTF-8");
+    for (File file : asList(changed, changed.getParentFile(), unchanged)) Files.setPosixFilePermissions(file.toPath(), fromString("rwxr-xr-x"));
+    new File(content.getRoot(), "en/.DAV").mkdir();
+    new File(content.getRoot(), "ru/.DAV").mkdir();
+
+    Git.fixPermissions(asList("en/news/content.html", "en/deleted.html"));
+
+    assertTrue(Files.getPosixFilePermissions(changed.toPath()).contains(GROUP_WRITE));
+    assertTrue(Files.getPosixFilePermissions(changed.getParentFile().toPath()).contains(GROUP_WRITE));
+    assertFalse(Files.getPosixFilePermissions(unchanged.toPath()).contains(GROUP_WRITE));
+    assertFalse(new File(content.getRoot(), "en/.DAV").exists());
+    assertTrue(new File(content.getRoot(), "ru/.DAV").exists());
+  }
+
+  @Test
+  public void changesBetweenCommitsAreTyped() throws Exception {
+    String first = Git.head();
+    writeStringToFile(new File(content.getRoot(), "about/content.html"), "About us and everything else", "UTF-8");
+    Git.git("add", ".");
+    Git.git("-c", "user.name=test", "-c", "user.email=test@example.com", "commit", "-q", "-m", "second");
+    String second = Git.head();
+    Git.git("mv", "about", "company");
+    writeStringToFile(new File(content.getRoot(), "en/content.html"), "Changed", "UTF-8");
+    writeStringToFile(new File(content.getRoot(), "en/news/content.html"), "News", "UTF-8");
+    Git.git("add", ".");
+    Git.git("-c", "user.name=test", "-c", "user.email=test@example.com", "commit", "-q", "-m", "third");
+
+    Git.ChangeSet changeSet = Git.changes(second, Git.head());
+    assertEquals(second, changeSet.fromCommit);
+    assertEquals("[RENAMED about/content.html -> company/content.html, MODIFIED en/content.html, ADDED en/news/content.html]",
+        changeSet.changes.toString());
+    assertEquals("{about/content.html=D, company/content.html=A, en/content.html=M, en/news/content.html=A}", changeSet.statuses().toString());
+    assertEquals("[/about/, /company/, /en/, /en/news/]", changeSet.pagePaths().toString());
+    assertEquals(1, Git.changes(first, second).changes.size());
+  }
+
+  @Test
+  public void createdFilesArePassedToLambdaListeners() {
+    List<String> created = new ArrayList<>();
+    Git.PullListener listener = created::add;
+    listener.pulled(new Git.ChangeSet("a", "b", asList(
+        new Git.Change(Git.Change.Type.ADDED, "en/new.html", null),
+        new Git.Change(Git.Change.Type.COPIED, "en/copy.html", "en/content.html"),
+        new Git.Change(Git.Change.Type.MODIFIED, "en/content.html", null))));
+    assertEquals(asList("en/new.html", "en/copy.html"), created);
+  }
+
+  @Test
+  public void streamedCommandIsReapedOnClose() throws Exception {
+    try (InputStream in = Git.gitForStream("show", "HEAD:en/content.html")) {
+      assertEquals("Hello", toString(in, UTF_8));
+    }
+  }
+
+  @Test
+  public void streamedCommandHoldsLockUntilClosed() throws Exception {
+    ExecutorService threads = Executors.newSingleThreadExecutor();
+    try (InputStream in = Git.gitForStream("show", "HEAD:en/content.html")) {
+      assertEquals("Hello", toString(in, UTF_8));
+      Future<String> add = threads.submit(() -> Git.git("add", "."));
+      Thread.sleep(200);
+      assertFalse(add.isDone());
+      in.close();
+      add.get(10, TimeUnit.SECONDS);
+    }
+    finally {
+      threads.shutdown();
+    }
+  }
+}
@@ -0,0 +1,120 @@
+package util;
+
+import models.WebPage;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import play.Play;
+
+import java.io.File;
+
+import static org.apache.commons.io.FileUtils.writeStringToFile;
+import static org.junit.Assert.*;
+
+public class LastCommitsTest {
+  @Rule public TemporaryFolder content = new TemporaryFolder();
+  private WebPage originalRoot;
+
+  @Before
+  public void setUp() throws Exception {
+    originalRoot = WebPage.ROOT;
+    Play.configuration.clear();
+    Play.applicationPath = null;
+    Play.configuration.setProperty("web.content", content.getRoot().getPath());
+    WebPage.ROOT = new WebPage();
+
+    Git.exec("git", "init", "-q");
+    commit("en/content.html", "Hello", "first");
+  }
+
+  @After
+  public void tearDown() {
+    Git.close();
+    WebPage.ROOT = originalRoot;
+  }
+
+  @Test
+  public void lastCommitOfEveryFileIsIndexed() throws Exception {
+    String first = Git.head();
+    String second = commit("ru/content.html", "Привет", "second");
+    LastCommits.build();
+
+    assertEquals(first, LastCommits.lastCommit("en/content.html").id);
+    assertEquals(second, LastCommits.lastCommit("/ru/content.html").id);
+    assertNull(LastCommits.lastCommit("en/missing.html"));
+    assertEquals(commitTime(second), LastCommits.lastModified("/ru/"));
+    assertEquals(0, LastCommits.lastModified("/missing/"));
+    assertTrue(LastCommits.isIndexed(second));
+  }
+
+  @Test
+  public void newCommitsAreAddedIncrementally() throws Exception {
+    String first = Git.head();
+    LastCommits.build();
+    String second = commit("en/content.html", "Changed", "second");
+    commit("ru/content.html", "Привет", "third");
+    String third = Git.head();
+
+    LastCommits.update(first, third);
+    assertEquals(second, LastCommits.lastCommit("en/content.html").id);
+    assertEquals(third, LastCommits.lastCommit("ru/content.html").id);
+    assertTrue(LastCommits.isIndexed(third));
+    assertFalse(LastCommits.isIndexed(first));
+  }
+
+  @Test
+  public void indexIsRebuiltIfUpdateDoesNotContinueIt() throws Exception {
+    LastCommits.build();
+    String second = commit("en/content.html", "Changed", "second");
+    String third = commit("ru/content.html", "Привет", "third");
+
+    LastCommits.update(second, third);
+    assertEquals(second, LastCommits.lastCommit("en/content.html").id);
+    assertTrue(LastCommits.isIndexed(third));
+  }
+
+  @Test
+  public void indexIsKeptIfGitFails() throws Exception {
+    String first = Git.head();
+    LastCommits.build();
+    try {
+      LastCommits.update(first, "missing-revision");
+      fail();
+    }
+    catch (Git.ExecException expected) {
+    }
+    assertTrue(LastCommits.isIndexed(first));
+    assertEquals(first, LastCommits.lastCommit("en/content.html").id);
+  }
+
+  @Test
+  public void uncommittedDirsAreModifiedWhenChangeIsNoticed() throws Exception {
+    String first = Git.head();
+    LastCommits.build();
+    writeStringToFile(new File(content.getRoot(), "en/content.html"), "Changed", "UTF-8");
+
+    long before = System.currentTimeMillis();
+    LastCommits.refreshUncommitted();
+    long noticed = LastCommits.lastModified("/en/");
+    assertTrue(noticed >= before);
+    LastCommits.refreshUncommitted();
+    assertEquals(noticed, LastCommits.lastModified("/en/"));
+
+    String second = commit("en/content.html", "Changed", "second");
+    LastCommits.update(first, second);
+    assertEquals(commitTime(second), LastCommits.lastModified("/en/"));
+  }
+
+  private String commit(String path, String text, String message) throws Exception {
+    writeStringToFile(new File(content.getRoot(), path), text, "UTF-8");
+    Git.git("add", ".");
+    Git.git("-c", "user.name=test", "-c", "user.email=test@example.com", "commit", "-q", "-m", message);
+    return Git.head();
+  }
+
+  private static long commitTime(String commit) throws Exception {
+    return Long.parseLong(Git.git("log", "-1", "--format=%ct", commit).trim()) * 1000;
+  }
+}
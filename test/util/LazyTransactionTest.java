@@ -0,0 +1,41 @@
+package util;
+
+import org.junit.After;
+import org.junit.Test;
+import play.db.jpa.JPA;
+
+import javax.persistence.EntityManager;
+
+import static org.junit.Assert.*;
+
+public class LazyTransactionTest {
+  @After
+  public void tearDown() {
+    JPA.currentEntityManager.get().remove(JPA.DEFAULT);
+  }
+
+  @Test
+  public void transactionIsNotStartedUntilEntityManagerIsUsed() {
+    LazyTransaction.bind(JPA.DEFAULT);
+    assertTrue(JPA.currentEntityManager.get().containsKey(JPA.DEFAULT));
+    assertFalse(LazyTransaction.isStarted(JPA.em()));
+    assertEquals("LazyTransaction[default]", JPA.em().toString());
+  }
+
+  @Test
+  public void unusedTransactionIsOnlyUnbound() {
+    LazyTransaction.bind(JPA.DEFAULT);
+    LazyTransaction.close(JPA.DEFAULT);
+    assertFalse(JPA.currentEntityManager.get().containsKey(JPA.DEFAULT));
+  }
+
+  @Test
+  public void closingUnusedTransactionDoesNotStartIt() {
+    LazyTransaction.bind(JPA.DEFAULT);
+    EntityManager em = JPA.em();
+    assertFalse(em.getTransaction().isActive());
+    assertTrue(em.isOpen());
+    em.close();
+    assertFalse(LazyTransaction.isStarted(em));
+  }
+}
@@ -0,0 +1,41 @@
+package util;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class LinkScannerTest {
+  @Test
+  public void findsLinksWithTheirParts() {
+    LinkScanner links = new LinkScanner("<p><a class=\"x\" href=\"doc.pdf\" id=\"d\">Document</a> <a href=\"\">Empty</a></p>");
+    assertTrue(links.find());
+    assertEquals(" class=\"x\" ", links.group(1));
+    assertEquals("doc.pdf", links.group(2));
+    assertEquals(" id=\"d\"", links.group(3));
+    assertEquals("Document", links.group(4));
+    assertFalse(links.find());
+  }
+
+  @Test
+  public void examinesEveryCharOnlyFewTimes() {
+    assertLinear("<p>Some text with <a href=\"document.pdf\">Document</a> and <a href=\"/about/\">link</a>.</p>\n", "");
+    assertLinear("<a href=\"document.pdf\">", "");
+    assertLinear("<a href=\"document.pdf\"><img src=\"image.png\"></a> ", "");
+    assertLinear("<a href=\"x\" ", ">");
+    assertLinear("<a ", ">");
+    assertLinear("<a href=\"", ">");
+    assertLinear("<a href=\"x\">   ", ">");
+  }
+
+  private static void assertLinear(String fragment, String end) {
+    StringBuilder content = new StringBuilder(1024 * 1024 + fragment.length() + end.length());
+    while (content.length() < 1024 * 1024) content.append(fragment);
+    content.append(end);
+
+    LinkScanner links = new LinkScanner(content.toString());
+    while (links.find()) {}
+    assertTrue("1Mb of " + fragment + end + " took " + links.steps + " steps", links.steps < 10L * content.length());
+  }
+}
@@ -0,0 +1,107 @@
+package util;
+
+import models.WebPage;
+import models.WebPageTree;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import play.Play;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.apache.commons.io.FileUtils.writeStringToFile;
+import static org.junit.Assert.*;
+
+public class NotFoundPagesTest {
+  @Rule public TemporaryFolder content = new TemporaryFolder();
+  AtomicInteger searches = new AtomicInteger();
+
+  @Test
+  public void onlyPathsNamedLikeSomePageAreWorthSearching() throws IOException {
+    WebPage originalRoot = WebPage.ROOT;
+    Play.configuration.clear();
+    Play.applicationPath = null;
+    Play.configuration.setProperty("web.content", content.getRoot().getPath());
+    writeStringToFile(new File(content.getRoot(), "en/metadata.properties"), "title: English", "UTF-8");
+    writeStringToFile(new File(content.getRoot(), "en/about-us/metadata.properties"), "title: About", "UTF-8");
+    writeStringToFile(new File(content.getRoot(), "en/about-us/team/metadata.properties"), "title: Team", "UTF-8");
+    try {
+      WebPage.ROOT = new WebPage();
+      WebPageTree.reload();
+      assertTrue(NotFoundPages.isWorthSearching("/team"));
+      assertTrue(NotFoundPages.isWorthSearching("/company/team/"));
+      assertTrue(NotFoundPages.isWorthSearching("/ru/about"));
+      assertFalse(NotFoundPages.isWorthSearching("/en/wp-login.php"));
+      assertFalse(NotFoundPages.isWorthSearching("/old-page"));
+      assertFalse(NotFoundPages.isWorthSearching("/en/"));
+    }
+    finally {
+      WebPage.ROOT = originalRoot;
+    }
+  }
+
+  @Test
+  public void searchIsRenderedOnlyOncePerMissingPath() throws IOException {
+    assertEquals("search 1", NotFoundPages.get("/missing/same", "en", "anonymous", this::search, () -> true));
+    assertEquals("search 1", NotFoundPages.get("/missing/same", "en", "anonymous", this::search, () -> true));
+    assertEquals("search 2", NotFoundPages.get("/missing/same", "en", "cms", this::search, () -> true));
+    assertEquals("search 3", NotFoundPages.get("/missing/other", "en", "anonymous", this::search, () -> true));
+  }
+
+  @Test
+  public void searchDependingOnSessionIsNotShared() throws IOException {
+    assertEquals("search 1", NotFoundPages.get("/missing/form", "en", "anonymous", this::search, () -> false));
+    assertEquals("search 2", NotFoundPages.get("/missing/form", "en", "anonymous", this::search, () -> true));
+    assertEquals("search 2", NotFoundPages.get("/missing/form", "en", "anonymous", this::search, () -> true));
+    assertEquals("search 3", NotFoundPages.get("/missing/form?after=1", "en", "anonymous", this::search, () -> true));
+  }
+
+  @Test
+  public void searchIsSkippedWhenTooManyAreRunning() throws Exception {
+    CountDownLatch started = new CountDownLatch(4), finish = new CountDownLatch(1);
+    Thread[] running = new Thread[4];
+    for (int i = 0; i < running.length; i++) {
+      String path = "/missing/slow" + i;
+      running[i] = new Thread(() -> get(path, () -> {
+        started.countDown();
+        finish.await();
+        return search();
+      }));
+      running[i].start();
+    }
+
+    started.await();
+    assertNull(NotFoundPages.get("/missing/busy", "en", "anonymous", this::search, () -> true));
+    finish.countDown();
+    for (Thread thread : running) thread.join();
+
+    assertNotNull(NotFoundPages.get("/missing/busy", "en", "anonymous", this::search, () -> true));
+  }
+
+  private void get(String path, Callable renderer) {
+    try {
+      NotFoundPages.get(path, "en", "anonymous", () -> {
+        try {
+          return renderer.call();
+        }
+        catch (InterruptedException e) {
+          throw new IOException(e);
+        }
+      }, () -> true);
+    }
+    catch (IOException e) {
+      throw new RuntimeException(e);
+    }
+  }
+
+  interface Callable {
+    String call() throws InterruptedException;
+  }
+
+  private String search() {
+    return "search " + searches.incrementAndGet();
+  }
+}
@@ -0,0 +1,30 @@
+package util;
+
+import org.junit.Test;
+
+import static java.util.Arrays.asList;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class PathPrefixTrieTest {
+  PathPrefixTrie trie = PathPrefixTrie.of(asList("/news/", "/en/news", "/ru/about/press/"));
+
+  @Test
+  public void matchesPathsBelowPrefixes() {
+    assertTrue(trie.matches("/news"));
+    assertTrue(trie.matches("/news/"));
+    assertTrue(trie.matches("/news/2013/05/10/"));
+    assertTrue(trie.matches("/en/news/2013"));
+    assertTrue(trie.matches("/ru/about/press/release/"));
+  }
+
+  @Test
+  public void matchesOnlyWholeSegments() {
+    assertFalse(trie.matches("/newsletter/"));
+    assertFalse(trie.matches("/en/"));
+    assertFalse(trie.matches("/ru/about/"));
+    assertFalse(trie.matches("/ru/about/pressure/"));
+    assertFalse(trie.matches("/"));
+    assertFalse(PathPrefixTrie.EMPTY.matches("/news/"));
+  }
+}
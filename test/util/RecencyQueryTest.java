@@ -0,0 +1,30 @@
+package util;
+
+import org.apache.lucene.index.Term;
+import org.apache.lucene.search.TermQuery;
+import org.junit.Test;
+
+import static java.util.Collections.emptyMap;
+import static org.junit.Assert.assertEquals;
+
+public class RecencyQueryTest {
+  static final long DAY = 24 * 3600 * 1000L;
+  RecencyQuery query = new RecencyQuery(new TermQuery(new Term("text", "news")), 1000 * DAY, 30 * DAY, 0.1f, emptyMap());
+
+  @Test
+  public void recencyHalvesEveryHalfLife() {
+    assertEquals(1f, query.recency(1000 * DAY), 0.0001);
+    assertEquals(0.5f, query.recency(970 * DAY), 0.0001);
+    assertEquals(0.25f, query.recency(940 * DAY), 0.0001);
+  }
+
+  @Test
+  public void oldPagesKeepMinimumWeight() {
+    assertEquals(0.1f, query.recency(0), 0.0001);
+  }
+
+  @Test
+  public void pagesFromFutureAreNotPreferred() {
+    assertEquals(1f, query.recency(1100 * DAY), 0.0001);
+  }
+}
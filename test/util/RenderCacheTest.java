@@ -0,0 +1,108 @@
+package util;
+
+import models.WebPage;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import play.Play;
+import play.vfs.VirtualFile;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.apache.commons.io.FileUtils.writeStringToFile;
+import static org.junit.Assert.assertEquals;
+
+public class RenderCacheTest {
+  @Rule public TemporaryFolder content = new TemporaryFolder();
+  AtomicInteger renders = new AtomicInteger();
+  private WebPage originalRoot;
+
+  @Before
+  public void setUp() {
+    originalRoot = WebPage.ROOT;
+    Play.configuration.setProperty("web.content", content.getRoot().getPath());
+    WebPage.ROOT = new WebPage();
+  }
+
+  @After
+  public void tearDown() {
+    WebPage.ROOT = originalRoot;
+  }
+
+  @Test
+  public void pageIsRenderedOnlyOnceWhileFilesAreNotChanged() throws IOException {
+    WebPage page = page("render/same");
+    assertEquals("rendered 1", RenderCache.get(page, "en", "anonymous", this::render, () -> true));
+    assertEquals("rendered 1", RenderCache.get(page, "en", "anonymous", this::render, () -> true));
+    assertEquals("rendered 2", RenderCache.get(page, "en", "cms", this::render, () -> true));
+    assertEquals("rendered 3", RenderCache.get(page, "et", "anonymous", this::render, () -> true));
+  }
+
+  @Test
+  public void pageIsRenderedAgainWhenItsFilesChange() throws IOException {
+    WebPage page = page("render/changed");
+    WebPage other = page("render/other");
+    assertEquals("rendered 1", RenderCache.get(page, "en", "anonymous", this::render, () -> true));
+
+    RenderCache.invalidate("/render/other/");
+    assertEquals("rendered 1", RenderCache.get(page, "en", "anonymous", this::render, () -> true));
+
+    RenderCache.invalidate("/render/changed/");
+    assertEquals("rendered 2", RenderCache.get(page, "en", "anonymous", this::render, () -> true));
+    assertEquals("rendered 3", RenderCache.get(other, "en", "anonymous", this::render, () -> true));
+  }
+
+  @Test
+  public void pagesDependingOnSessionAreNotShared() throws IOException {
+    WebPage page = page("render/form");
+    assertEquals("rendered 1", RenderCache.get(page, "en", "anonymous", this::render, () -> false));
+    assertEquals("rendered 2", RenderCache.get(page, "en", "anonymous", this::render, () -> false));
+  }
+
+  @Test
+  public void concurrentRequestsGetPreviousVersionWhilePageIsRendered() throws Exception {
+    WebPage page = page("render/stale");
+    RenderCache.get(page, "en", "anonymous", this::render, () -> true);
+    RenderCache.invalidate("/render/stale/");
+
+    CountDownLatch renderingStarted = new CountDownLatch(1), otherRequestServed = new CountDownLatch(1);
+    Thread renderer = new Thread(() -> RenderCache.get(page, "en", "anonymous", () -> {
+      renderingStarted.countDown();
+      await(otherRequestServed);
+      return render();
+    }, () -> true));
+    renderer.start();
+
+    renderingStarted.await();
+    assertEquals("rendered 1", RenderCache.get(page, "en", "anonymous", this::render, () -> true));
+    otherRequestServed.countDown();
+    renderer.join();
+
+    assertEquals("rendered 2", RenderCache.get(page, "en", "anonymous", this::render, () -> true));
+    assertEquals(2, renders.get());
+  }
+
+  private String render() {
+    return "rendered " + renders.incrementAndGet();
+  }
+
+  private WebPage page(String path) throws IOException {
+    File pageDir = new File(content.getRoot().getCanonicalFile(), path);
+    writeStringToFile(new File(pageDir, "content.html"), "Content", "UTF-8");
+    return WebPage.forPath(VirtualFile.open(pageDir));
+  }
+
+  private static void await(CountDownLatch latch) {
+    try {
+      latch.await();
+    }
+    catch (InterruptedException e) {
+      throw new RuntimeException(e);
+    }
+  }
+}
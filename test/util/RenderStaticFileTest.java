@@ -0,0 +1,116 @@
+package util;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import play.mvc.Http;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.List;
+
+import static org.apache.commons.io.FileUtils.writeStringToFile;
+import static org.apache.commons.io.IOUtils.toString;
+import static org.junit.Assert.*;
+
+public class RenderStaticFileTest {
+  @Rule public TemporaryFolder dir = new TemporaryFolder();
+  File file;
+  Http.Request request;
+  Http.Response response = new Http.Response();
+
+  @Before
+  public void setUp() throws IOException {
+    file = new File(dir.getRoot(), "song.mp3");
+    writeStringToFile(file, "0123456789", "UTF-8");
+    @SuppressWarnings("deprecation") Http.Request request = new Http.Request();
+    this.request = request;
+    request.method = "GET";
+  }
+
+  @Test
+  public void wholeFileIsStreamedToKeepEtag() throws IOException {
+    new RenderStaticFile(file).apply(request, response);
+    assertEquals(200, response.status.intValue());
+    assertEquals("0123456789", toString((InputStream) response.direct, "UTF-8"));
+    assertTrue(response.getHeader("ETag").startsWith("\""));
+    assertEquals("10", response.getHeader("Content-Length"));
+    assertEquals("bytes", response.getHeader("Accept-Ranges"));
+  }
+
+  @Test
+  public void singleRange() throws IOException {
+    header("range", "bytes=2-4");
+    new RenderStaticFile(file).apply(request, response);
+    assertEquals(206, response.status.intValue());
+    assertEquals("bytes 2-4/10", response.getHeader("Content-Range"));
+    assertEquals("234", toString((InputStream) response.direct, "UTF-8"));
+  }
+
+  @Test
+  public void multipleRanges() throws IOException {
+    header("range", "bytes=0-1,-2");
+    new RenderStaticFile(file).apply(request, response);
+    assertEquals(206, response.status.intValue());
+    assertTrue(response.contentType.startsWith("multipart/byteranges; boundary="));
+    String body = toString((InputStream) response.direct, "UTF-8");
+    assertTrue(body.contains("Content-Range: bytes 0-1/10\r\n\r\n01\r\n"));
+    assertTrue(body.contains("Content-Range: bytes 8-9/10\r\n\r\n89\r\n"));
+    assertEquals(String.valueOf(body.length()), response.getHeader("Content-Length"));
+  }
+
+  @Test
+  public void unsatisfiableRange() {
+    header("range", "bytes=10-");
+    new RenderStaticFile(file).apply(request, response);
+    assertEquals(416, response.status.intValue());
+    assertEquals("bytes */10", response.getHeader("Content-Range"));
+  }
+
+  @Test
+  public void rangeIsIgnoredIfFileHasChanged() {
+    header("range", "bytes=2-4");
+    header("if-range", "\"other\"");
+    new RenderStaticFile(file).apply(request, response);
+    assertEquals(200, response.status.intValue());
+    assertSame(file, response.direct);
+  }
+
+  @Test
+  public void notModifiedIfEtagMatches() {
+    new RenderStaticFile(file).apply(request, response);
+    String etag = response.getHeader("ETag");
+
+    Http.Response next = new Http.Response();
+    header("if-none-match", etag);
+    new RenderStaticFile(file).apply(request, next);
+    assertEquals(304, next.status.intValue());
+    assertNull(next.direct);
+  }
+
+  @Test
+  public void parseRanges() {
+    assertRanges(RenderStaticFile.parseRanges("bytes=0-0", 10), 0, 0);
+    assertRanges(RenderStaticFile.parseRanges("bytes=5-100", 10), 5, 9);
+    assertRanges(RenderStaticFile.parseRanges("bytes=-100", 10), 0, 9);
+    assertRanges(RenderStaticFile.parseRanges("bytes= 1-2 , 4-", 10), 1, 2, 4, 9);
+    assertTrue(RenderStaticFile.parseRanges("bytes=10-20", 10).isEmpty());
+    assertNull(RenderStaticFile.parseRanges("bytes=5-1", 10));
+    assertNull(RenderStaticFile.parseRanges("bytes=x-1", 10));
+    assertNull(RenderStaticFile.parseRanges("items=1-2", 10));
+  }
+
+  private static void assertRanges(List<long[]> ranges, long... positions) {
+    assertEquals(positions.length / 2, ranges.size());
+    for (int i = 0; i < ranges.size(); i++) {
+      assertEquals(positions[2 * i], ranges.get(i)[0]);
+      assertEquals(positions[2 * i + 1], ranges.get(i)[1]);
+    }
+  }
+
+  private void header(String name, String value) {
+    request.headers.put(name, new Http.Header(name, value));
+  }
+}
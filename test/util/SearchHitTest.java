@@ -0,0 +1,26 @@
+package util;
+
+import org.junit.Test;
+
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+public class SearchHitTest {
+  @Test
+  public void parentPathsAreNearestAncestorsOfThePage() {
+    List<SearchHit.Parent> parents = SearchHit.parents("/en/about/team/people/", new String[] {"About", "Team"});
+    assertEquals(2, parents.size());
+    assertEquals("/en/about/", parents.get(0).path);
+    assertEquals("About", parents.get(0).title);
+    assertEquals("/en/about/team/", parents.get(1).path);
+    assertEquals("Team", parents.get(1).title);
+  }
+
+  @Test
+  public void pagesWithoutParentsHaveNone() {
+    assertEquals(0, SearchHit.parents("/en/about/", new String[0]).size());
+    assertNull(SearchHit.parents("/", new String[] {"Lost"}).get(0).path);
+  }
+}
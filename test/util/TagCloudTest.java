@@ -0,0 +1,27 @@
+package util;
+
+import com.google.common.collect.ImmutableMap;
+import org.junit.Test;
+
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class TagCloudTest {
+  @Test
+  public void tagsSortedByUsageArePutToBothEnds() {
+    List<Map.Entry<String, Float>> cloud = TagCloud.of(ImmutableMap.of("a", 1, "b", 2, "c", 3, "d", 4));
+    assertEquals("d", cloud.get(0).getKey());
+    assertEquals("b", cloud.get(1).getKey());
+    assertEquals("a", cloud.get(2).getKey());
+    assertEquals("c", cloud.get(3).getKey());
+    assertEquals(0.4f, cloud.get(0).getValue(), 0.0001);
+  }
+
+  @Test
+  public void emptyCloud() {
+    assertTrue(TagCloud.of(ImmutableMap.<String, Integer>of()).isEmpty());
+  }
+}
@@ -0,0 +1,63 @@
+package util;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import play.Play;
+
+import javax.imageio.ImageIO;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+
+import static org.junit.Assert.*;
+
+public class ThumbnailsTest {
+  @Rule public TemporaryFolder dir = new TemporaryFolder();
+  File originalTmpDir;
+  File image;
+
+  @Before
+  public void setUp() throws IOException {
+    originalTmpDir = Play.tmpDir;
+    Play.tmpDir = dir.newFolder("tmp");
+    image = new File(dir.getRoot(), "image.png");
+    ImageIO.write(new BufferedImage(300, 200, BufferedImage.TYPE_INT_RGB), "png", image);
+  }
+
+  @After
+  public void tearDown() {
+    Play.tmpDir = originalTmpDir;
+  }
+
+  @Test
+  public void heightIsRoundedUpToFixedSize() {
+    assertEquals(32, Thumbnails.bucket(1));
+    assertEquals(64, Thumbnails.bucket(50));
+    assertEquals(64, Thumbnails.bucket(64));
+    assertEquals(800, Thumbnails.bucket(100000));
+  }
+
+  @Test
+  public void thumbnailIsGeneratedOnce() throws IOException {
+    File thumbnail = Thumbnails.get(image, 50);
+    BufferedImage img = ImageIO.read(thumbnail);
+    assertEquals(64, img.getHeight());
+    assertEquals(96, img.getWidth());
+
+    long generated = thumbnail.lastModified();
+    assertEquals(thumbnail, Thumbnails.get(image, 60));
+    assertEquals(generated, thumbnail.lastModified());
+  }
+
+  @Test
+  public void thumbnailsOfPreviousImageVersionsAreDeleted() throws IOException {
+    File old = Thumbnails.get(image, 50);
+    image.setLastModified(image.lastModified() - 10000);
+    File thumbnail = Thumbnails.get(image, 50);
+    assertNotEquals(old, thumbnail);
+    assertFalse(old.exists());
+  }
+}
@@ -0,0 +1,31 @@
+package util;
+
+import org.junit.Test;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class WebPageIndexerTest {
+  @Test
+  public void tagFrequenciesAreSavedWithIndex() {
+    Map<String, Map<String, AtomicInteger>> tagsFreq = new HashMap<>();
+    tagsFreq.computeIfAbsent("en", k -> new HashMap<>()).put("cards", new AtomicInteger(3));
+    tagsFreq.computeIfAbsent("en", k -> new HashMap<>()).put("loans and deposits", new AtomicInteger(1));
+    tagsFreq.computeIfAbsent("ru", k -> new HashMap<>()).put("карты", new AtomicInteger(2));
+
+    Map<String, Map<String, AtomicInteger>> decoded = WebPageIndexer.decodeTagsFreq(WebPageIndexer.encodeTagsFreq(tagsFreq));
+    assertEquals(2, decoded.size());
+    assertEquals(3, decoded.get("en").get("cards").get());
+    assertEquals(1, decoded.get("en").get("loans and deposits").get());
+    assertEquals(2, decoded.get("ru").get("карты").get());
+  }
+
+  @Test
+  public void missingTagFrequencies() {
+    assertTrue(WebPageIndexer.decodeTagsFreq(null).isEmpty());
+  }
+}